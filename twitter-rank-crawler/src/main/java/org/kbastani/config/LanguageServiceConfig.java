@@ -0,0 +1,32 @@
+package org.kbastani.config;
+
+import org.kbastani.nlp.GoogleLanguageBackend;
+import org.kbastani.nlp.LanguageBackend;
+import org.kbastani.nlp.LocalLanguageBackend;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * This configuration selects the natural language backend used for sentiment and entity analysis. The Google
+ * Cloud backend is the default, and setting {@code nlp.backend} to {@code local} replaces it with an offline
+ * stand-in that can be used for testing and for measuring the crawler without calling the paid API.
+ *
+ * @author kbastani
+ */
+@Configuration
+public class LanguageServiceConfig {
+
+    @Bean
+    @ConditionalOnProperty(name = "nlp.backend", havingValue = "google", matchIfMissing = true)
+    LanguageBackend googleLanguageBackend(@Value("${nlp.google.channel-pool-size:1}") int channelPoolSize) {
+        return new GoogleLanguageBackend(channelPoolSize);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "nlp.backend", havingValue = "local")
+    LanguageBackend localLanguageBackend(@Value("${nlp.local.latency-ms:0}") long latencyMillis) {
+        return new LocalLanguageBackend(latencyMillis);
+    }
+}
@@ -2,19 +2,31 @@ package org.kbastani.config;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.kbastani.text.RankableEntities;
+import org.kbastani.text.TextEntityRepository;
+import org.kbastani.twitter.RateLimiter;
+import org.kbastani.twitter.TwitterClient;
+import org.kbastani.twitter.TwitterProperties;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
 import org.neo4j.ogm.transaction.Transaction;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
 import org.springframework.amqp.core.Queue;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import twitter4j.Twitter;
 import twitter4j.TwitterFactory;
 import twitter4j.auth.AccessToken;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This configuration defines the setup information for RabbitMQ queues and a command line runner bean
@@ -37,6 +49,55 @@ public class TwitterCrawlerConfig {
         return new Queue("twitter.followers", true, false, false);
     }
 
+    /**
+     * The delay classes of the wait queues, in ascending order. A queue expires its messages in order, so a
+     * message with a short delay behind one with a long delay would wait for both. Each delay class therefore has
+     * its own wait queue, where all messages share the TTL of the queue.
+     */
+    public static final long[] WAIT_DELAYS = {15000, 60000, 300000, 900000};
+
+    /**
+     * Messages that have to wait for a rate limit window, a retry, or the import lease of another replica are
+     * parked in a wait queue, and are dead lettered back to the work queue when the TTL of the queue expires
+     */
+    @Bean
+    Declarables waitQueues() {
+        List<Declarable> queues = new ArrayList<>();
+
+        for (long delay : WAIT_DELAYS) {
+            queues.add(waitQueue("twitter.follows", delay));
+            queues.add(waitQueue("twitter.followers", delay));
+        }
+
+        return new Declarables(queues);
+    }
+
+    /**
+     * @return the name of the wait queue with the longest delay class that does not exceed the delay, or with the
+     * shortest delay class when the delay is shorter than all of them. A message that wakes up before its rate
+     * limit window resets is deferred again for the rest of the wait, so it is never late by more than the shortest
+     * delay class.
+     */
+    public static String waitQueueName(String queue, long delay) {
+        long waitDelay = WAIT_DELAYS[0];
+
+        for (long candidate : WAIT_DELAYS) {
+            if (candidate <= delay) {
+                waitDelay = candidate;
+            }
+        }
+
+        return queue + ".wait." + waitDelay;
+    }
+
+    private static Queue waitQueue(String queue, long delay) {
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("x-message-ttl", delay);
+        arguments.put("x-dead-letter-exchange", "");
+        arguments.put("x-dead-letter-routing-key", queue);
+        return new Queue(queue + ".wait." + delay, true, false, false, arguments);
+    }
+
     @Value("${spring.social.twitter.appId}")
     private String appId;
 
@@ -50,18 +111,43 @@ public class TwitterCrawlerConfig {
     private String accessTokenSecret;
 
     @Bean
-    Twitter twitter(final @Value("${spring.social.twitter.appId}") String appId,
-                    final @Value("${spring.social.twitter.appSecret}") String appSecret,
-                    final @Value("${spring.social.twitter.accessToken}") String accessToken,
-                    final @Value("${spring.social.twitter.accessTokenSecret}") String accessTokenSecret) {
-        Twitter twitter = TwitterFactory.getSingleton();
+    @ConfigurationProperties(prefix = "twitter")
+    TwitterProperties twitterProperties() {
+        return new TwitterProperties();
+    }
+
+    /**
+     * Creates a Twitter client for every configured credential, and falls back to the single
+     * spring.social.twitter credential when none are configured
+     */
+    @Bean
+    TwitterClient twitterClient(TwitterProperties twitterProperties, RateLimiter rateLimiter) {
+        Map<String, Twitter> credentials = new LinkedHashMap<>();
+
+        if (twitterProperties.getCredentials().isEmpty()) {
+            credentials.put("default", twitter(appId, appSecret, accessToken, accessTokenSecret));
+        }
+
+        for (TwitterProperties.Credential credential : twitterProperties.getCredentials()) {
+            String name = credential.getName() != null ? credential.getName() :
+                    "credential-" + (credentials.size() + 1);
+            credentials.put(name, twitter(credential.getAppId(), credential.getAppSecret(),
+                    credential.getAccessToken(), credential.getAccessTokenSecret()));
+        }
+
+        logger.info(String.format("Using %s Twitter credentials: %s", credentials.size(), credentials.keySet()));
+        return new TwitterClient(credentials, rateLimiter);
+    }
+
+    private static Twitter twitter(String appId, String appSecret, String accessToken, String accessTokenSecret) {
+        Twitter twitter = new TwitterFactory().getInstance();
         twitter.setOAuthConsumer(appId, appSecret);
         twitter.setOAuthAccessToken(new AccessToken(accessToken, accessTokenSecret));
         return twitter;
     }
 
     @Bean
-    CommandLineRunner commandLineRunner(SessionFactory sessionFactory) {
+    CommandLineRunner commandLineRunner(SessionFactory sessionFactory, TextEntityRepository textEntityRepository) {
         return (args) -> {
             // Make sure that a constraint is created on the Neo4j database
             // This constraint ensures that each profileId is unique per user node
@@ -71,11 +157,31 @@ public class TwitterCrawlerConfig {
                         new HashMap<>());
                 session.query("CREATE CONSTRAINT ON (entity:TextEntity) ASSERT entity.name IS UNIQUE",
                         new HashMap<>());
+                session.query("CREATE INDEX ON :User(pagerankChangedAt)", new HashMap<>());
+                session.query("CREATE INDEX ON :User(pagerank)", new HashMap<>());
+                session.query("CREATE CONSTRAINT ON (chain:DiscoveryChain) ASSERT chain.name IS UNIQUE",
+                        new HashMap<>());
+                session.query("CREATE INDEX ON :RankableEntity(pagerank)", new HashMap<>());
                 tx.commit();
             } catch (Exception ex) {
                 // The constraint is already created or the database is not available
                 logger.error(ex);
             }
+
+            // Label the text entities that were imported before their eligibility for ranking was stored, and then
+            // count their tweets
+            try {
+                Long labeled = textEntityRepository.backfillRankableEntities(RankableEntities.EXCLUDED_NAMES);
+                if (labeled != null) {
+                    logger.info(String.format("Labeled %s existing text entities as rankable", labeled));
+                }
+                Long counted = textEntityRepository.backfillEntityTweetCounts();
+                if (counted != null) {
+                    logger.info(String.format("Counted the tweets of %s existing text entities", counted));
+                }
+            } catch (Exception ex) {
+                logger.error(ex);
+            }
         };
     }
 }
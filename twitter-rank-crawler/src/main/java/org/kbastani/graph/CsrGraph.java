@@ -0,0 +1,128 @@
+package org.kbastani.graph;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of a directed graph in compressed sparse row form. Nodes are numbered densely from zero,
+ * and the incoming neighbours of node {@code v} are {@code sources[offsets[v]]} to {@code sources[offsets[v + 1] - 1]}.
+ * Storing the incoming edges lets PageRank gather the score of each node without any synchronization between the
+ * threads that compute it.
+ *
+ * @author kbastani
+ */
+public class CsrGraph {
+
+    private final long[] ids;
+    private final int[] offsets;
+    private final int[] sources;
+    private final int[] outDegrees;
+
+    private CsrGraph(long[] ids, int[] offsets, int[] sources, int[] outDegrees) {
+        this.ids = ids;
+        this.offsets = offsets;
+        this.sources = sources;
+        this.outDegrees = outDegrees;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int nodeCount() {
+        return ids.length;
+    }
+
+    public int edgeCount() {
+        return sources.length;
+    }
+
+    /**
+     * @return the Neo4j id of the node with the index {@code node}
+     */
+    public long id(int node) {
+        return ids[node];
+    }
+
+    public int outDegree(int node) {
+        return outDegrees[node];
+    }
+
+    int inStart(int node) {
+        return offsets[node];
+    }
+
+    int inEnd(int node) {
+        return offsets[node + 1];
+    }
+
+    int source(int edge) {
+        return sources[edge];
+    }
+
+    /**
+     * Collects nodes and edges by their Neo4j ids and compacts them into a {@link CsrGraph}.
+     */
+    public static class Builder {
+        private final LongIntHashMap index = new LongIntHashMap(1024);
+        private long[] ids = new long[1024];
+        private int[] edgeSources = new int[1024];
+        private int[] edgeTargets = new int[1024];
+        private int nodeCount;
+        private int edgeCount;
+
+        /**
+         * Adds a node, if it is not already part of the graph.
+         *
+         * @return the index of the node
+         */
+        public int addNode(long id) {
+            int node = index.putIfAbsent(id, nodeCount);
+
+            if (node == nodeCount) {
+                if (nodeCount == ids.length) {
+                    ids = Arrays.copyOf(ids, nodeCount * 2);
+                }
+                ids[nodeCount++] = id;
+            }
+
+            return node;
+        }
+
+        public Builder addEdge(long source, long target) {
+            int from = addNode(source);
+            int to = addNode(target);
+
+            if (edgeCount == edgeSources.length) {
+                edgeSources = Arrays.copyOf(edgeSources, edgeCount * 2);
+                edgeTargets = Arrays.copyOf(edgeTargets, edgeCount * 2);
+            }
+
+            edgeSources[edgeCount] = from;
+            edgeTargets[edgeCount++] = to;
+            return this;
+        }
+
+        public CsrGraph build() {
+            int[] offsets = new int[nodeCount + 1];
+            int[] outDegrees = new int[nodeCount];
+
+            for (int edge = 0; edge < edgeCount; edge++) {
+                offsets[edgeTargets[edge] + 1]++;
+                outDegrees[edgeSources[edge]]++;
+            }
+
+            for (int node = 0; node < nodeCount; node++) {
+                offsets[node + 1] += offsets[node];
+            }
+
+            int[] next = Arrays.copyOf(offsets, nodeCount);
+            int[] sources = new int[edgeCount];
+
+            for (int edge = 0; edge < edgeCount; edge++) {
+                sources[next[edgeTargets[edge]]++] = edgeSources[edge];
+            }
+
+            return new CsrGraph(Arrays.copyOf(ids, nodeCount), offsets, sources, outDegrees);
+        }
+    }
+}
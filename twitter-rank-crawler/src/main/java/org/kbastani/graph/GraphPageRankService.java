@@ -0,0 +1,221 @@
+package org.kbastani.graph;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kbastani.user.CrawlFrontier;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the PageRank jobs of the crawler in process instead of inside Neo4j. The adjacency of a graph is read
+ * from Neo4j into a {@link CsrGraph} snapshot, scores are computed with {@link PageRank} on the crawler's cores,
+ * and the results are written back to the database in batched UNWIND statements. This keeps the iterations off
+ * the database, where they would compete with the crawler's writes for the page cache. The FOLLOWS snapshot also
+ * rebuilds the {@link CrawlFrontier} from the scores and in-degrees of the undiscovered users.
+ *
+ * @author kbastani
+ */
+@Service
+public class GraphPageRankService implements DisposableBean {
+
+    // The adjacency is read in ranges of node ids, where each id of a range is looked up directly rather than
+    // found with a scan, so that only the rows of one range are buffered by the OGM at a time
+    private static final String FOLLOWS_ADJACENCY = "UNWIND range({from}, {to} - 1) as nodeId\n" +
+            "MATCH (a:User) WHERE id(a) = nodeId\n" +
+            "RETURN id(a) as source, [(a)-[:FOLLOWS]->(b:User) | id(b)] as targets,\n" +
+            "CASE WHEN NOT exists(a.screenName) AND NOT coalesce(a.unavailable, false) THEN a.profileId END as candidate";
+
+    private static final String FOLLOWS_MAX_ID = "MATCH (a:User) RETURN max(id(a)) as maxId";
+
+    private static final String HAS_ENTITY_ADJACENCY = "UNWIND range({from}, {to} - 1) as nodeId\n" +
+            "MATCH (t:Tweet) WHERE id(t) = nodeId\n" +
+            "RETURN id(t) as source, [(t)-[:HAS_ENTITY]->(e:TextEntity) | id(e)] as targets";
+
+    private static final String HAS_ENTITY_MAX_ID = "MATCH (t:Tweet) RETURN max(id(t)) as maxId";
+
+    private static final String WRITE_USER_PAGERANK = "UNWIND {rows} as row\n" +
+            "MATCH (user:User) WHERE id(user) = row.id\n" +
+            "SET user.pagerank = row.score";
+
+    private static final String WRITE_ENTITY_PAGERANK = "UNWIND {rows} as row\n" +
+            "MATCH (entity:RankableEntity) WHERE id(entity) = row.id\n" +
+            "SET entity.pagerank = row.score";
+
+    private final Log log = LogFactory.getLog(GraphPageRankService.class);
+    private final SessionFactory sessionFactory;
+    private final CrawlFrontier crawlFrontier;
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    private final int loadChunkSize;
+
+    @Autowired
+    public GraphPageRankService(SessionFactory sessionFactory, CrawlFrontier crawlFrontier,
+                                @Value("${pagerank.parallelism:0}") int parallelism,
+                                @Value("${pagerank.write-batch-size:10000}") int batchSize,
+                                @Value("${pagerank.load-chunk-size:50000}") int loadChunkSize) {
+        this.sessionFactory = sessionFactory;
+        this.crawlFrontier = crawlFrontier;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.batchSize = batchSize;
+        this.loadChunkSize = loadChunkSize;
+    }
+
+    /**
+     * Updates the PageRank of every user on the FOLLOWS graph, using the same number of iterations as the
+     * APOC job that it replaces, and replaces the crawl frontier with the undiscovered users of the snapshot.
+     */
+    public void updatePageRankForFollowGraph() {
+        update("FOLLOWS", FOLLOWS_MAX_ID, FOLLOWS_ADJACENCY, WRITE_USER_PAGERANK, 10, false, new Candidates());
+    }
+
+    /**
+     * Updates the PageRank of every text entity on the HAS_ENTITY graph. Tweets are part of the snapshot as the
+     * sources of the ranks, but only the text entities are written back.
+     */
+    public void updatePageRankForEntityGraph() {
+        update("HAS_ENTITY", HAS_ENTITY_MAX_ID, HAS_ENTITY_ADJACENCY, WRITE_ENTITY_PAGERANK, 5, true, null);
+    }
+
+    private void update(String type, String maxId, String adjacency, String write, int iterations,
+                        boolean targetsOnly, Candidates candidates) {
+        Session session = sessionFactory.openSession();
+
+        long start = System.currentTimeMillis();
+        CsrGraph graph = load(session, maxId, adjacency, candidates);
+        long loaded = System.currentTimeMillis();
+        double[] scores = PageRank.compute(graph, iterations, pool);
+        long computed = System.currentTimeMillis();
+        int written = write(session, graph, scores, write, targetsOnly);
+
+        if (candidates != null) {
+            candidates.replace(crawlFrontier, graph, scores);
+        }
+
+        log.info(String.format("%s PageRank of %s nodes and %s relationships: loaded in %sms, computed in %sms, " +
+                        "wrote %s scores in %sms", type, graph.nodeCount(), graph.edgeCount(), loaded - start,
+                computed - loaded, written, System.currentTimeMillis() - computed));
+    }
+
+    /**
+     * Reads the adjacency of the source nodes into the primitive arrays of a {@link CsrGraph} builder, one range of
+     * {@code pagerank.load-chunk-size} node ids at a time up to the highest id of a source node
+     */
+    private CsrGraph load(Session session, String maxId, String adjacency, Candidates candidates) {
+        CsrGraph.Builder builder = CsrGraph.builder();
+        Iterator<Map<String, Object>> max = session.query(maxId, Collections.emptyMap(), true).queryResults()
+                .iterator();
+        Object last = max.hasNext() ? max.next().get("maxId") : null;
+        long end = last == null ? 0 : ((Number) last).longValue() + 1;
+        Map<String, Object> params = new HashMap<>(2);
+
+        for (long from = 0; from < end; from += loadChunkSize) {
+            params.put("from", from);
+            params.put("to", Math.min(from + loadChunkSize, end));
+
+            for (Map<String, Object> row : session.query(adjacency, params, true)) {
+                long source = ((Number) row.get("source")).longValue();
+                int node = builder.addNode(source);
+                if (candidates != null && row.get("candidate") != null) {
+                    candidates.add(node, ((Number) row.get("candidate")).longValue());
+                }
+                for (Object target : targets(row.get("targets"))) {
+                    builder.addEdge(source, ((Number) target).longValue());
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    private int write(Session session, CsrGraph graph, double[] scores, String write, boolean targetsOnly) {
+        List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+        int written = 0;
+
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            if (targetsOnly && graph.inStart(node) == graph.inEnd(node)) {
+                continue;
+            }
+
+            Map<String, Object> row = new HashMap<>(2);
+            row.put("id", graph.id(node));
+            row.put("score", scores[node]);
+            rows.add(row);
+
+            if (rows.size() == batchSize) {
+                written += flush(session, write, rows);
+            }
+        }
+
+        return written + flush(session, write, rows);
+    }
+
+    private static int flush(Session session, String write, List<Map<String, Object>> rows) {
+        int size = rows.size();
+
+        if (size > 0) {
+            session.query(write, Collections.singletonMap("rows", rows));
+            rows.clear();
+        }
+
+        return size;
+    }
+
+    /**
+     * Collections are returned by the OGM either as lists or as arrays, depending on the driver.
+     */
+    private static Iterable<?> targets(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        } else if (value instanceof Iterable) {
+            return (Iterable<?>) value;
+        } else if (value instanceof long[]) {
+            return Arrays.stream((long[]) value).boxed().collect(Collectors.toList());
+        } else if (value instanceof int[]) {
+            return Arrays.stream((int[]) value).boxed().collect(Collectors.toList());
+        }
+        return Arrays.asList((Object[]) value);
+    }
+
+    /**
+     * The nodes of a snapshot that are undiscovered users, with their profile ids
+     */
+    private static class Candidates {
+        private int[] nodes = new int[1024];
+        private long[] profileIds = new long[1024];
+        private int count;
+
+        void add(int node, long profileId) {
+            if (count == nodes.length) {
+                nodes = Arrays.copyOf(nodes, count * 2);
+                profileIds = Arrays.copyOf(profileIds, count * 2);
+            }
+            nodes[count] = node;
+            profileIds[count++] = profileId;
+        }
+
+        void replace(CrawlFrontier crawlFrontier, CsrGraph graph, double[] scores) {
+            double[] ranks = new double[count];
+            int[] followers = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                ranks[i] = scores[nodes[i]];
+                followers[i] = graph.inEnd(nodes[i]) - graph.inStart(nodes[i]);
+            }
+
+            crawlFrontier.replace(profileIds, ranks, followers, count);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdownNow();
+    }
+}
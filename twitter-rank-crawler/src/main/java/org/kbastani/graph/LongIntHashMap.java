@@ -0,0 +1,158 @@
+package org.kbastani.graph;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from primitive long keys to non-negative int values. It is used to translate
+ * Neo4j node ids into dense node indices without boxing a key and a value for every node of a graph snapshot, and
+ * to track the position of each user in the heap of the crawl frontier.
+ *
+ * @author kbastani
+ */
+public class LongIntHashMap {
+
+    public static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+    }
+
+    /**
+     * @return the value of the key, or {@link #MISSING} if the key is not in the map
+     */
+    public int get(long key) {
+        int mask = keys.length - 1;
+
+        for (int slot = hash(key) & mask; values[slot] != MISSING; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+
+        return MISSING;
+    }
+
+    /**
+     * Returns the value of the key, or associates the key with {@code value} if it is not in the map yet.
+     *
+     * @return the existing value of the key, or {@code value} if the key was added
+     */
+    public int putIfAbsent(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must not be negative");
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (values[slot] != MISSING) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return value;
+    }
+
+    /**
+     * Associates the key with {@code value}, replacing any existing value of the key.
+     */
+    public void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must not be negative");
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (values[slot] != MISSING) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    /**
+     * Removes the key from the map. The entries that follow it in its probe sequence are shifted back into the
+     * freed slot, so that lookups never need to skip over deleted slots.
+     *
+     * @return the value of the removed key, or {@link #MISSING} if the key was not in the map
+     */
+    public int remove(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (values[slot] != MISSING && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        int value = values[slot];
+
+        if (value == MISSING) {
+            return MISSING;
+        }
+
+        for (int next = (slot + 1) & mask; values[next] != MISSING; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // The entry can move into the free slot unless its home lies cyclically between the two slots
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                slot = next;
+            }
+        }
+
+        values[slot] = MISSING;
+        size--;
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, MISSING);
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) {
+                putIfAbsent(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,83 @@
+package org.kbastani.graph;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Computes PageRank on a {@link CsrGraph} with the same update rule as apoc.algo.pageRank, where the score of a
+ * node is {@code 0.15 + 0.85 * sum(score(u) / outDegree(u))} over its incoming neighbours {@code u}. Every node
+ * starts with the score of a node without incoming edges, and each iteration is split into ranges of nodes that
+ * are computed in parallel on a {@link ForkJoinPool}.
+ *
+ * @author kbastani
+ */
+public class PageRank {
+
+    public static final double DAMPING = 0.85;
+
+    private static final int RANGE_SIZE = 2048;
+
+    private PageRank() {
+    }
+
+    /**
+     * @return the score of each node of the graph, indexed by node
+     */
+    public static double[] compute(CsrGraph graph, int iterations, ForkJoinPool pool) {
+        int nodeCount = graph.nodeCount();
+        double[] scores = new double[nodeCount];
+        double[] next = new double[nodeCount];
+        double[] contributions = new double[nodeCount];
+        Arrays.fill(scores, 1 - DAMPING);
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            double[] current = scores;
+            pool.invoke(new RangeAction(0, nodeCount, node -> {
+                int degree = graph.outDegree(node);
+                contributions[node] = degree == 0 ? 0 : current[node] / degree;
+            }));
+
+            double[] target = next;
+            pool.invoke(new RangeAction(0, nodeCount, node -> {
+                double sum = 0;
+                for (int edge = graph.inStart(node); edge < graph.inEnd(node); edge++) {
+                    sum += contributions[graph.source(edge)];
+                }
+                target[node] = (1 - DAMPING) + DAMPING * sum;
+            }));
+
+            next = scores;
+            scores = target;
+        }
+
+        return scores;
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer body;
+
+        RangeAction(int from, int to, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= RANGE_SIZE) {
+                for (int node = from; node < to; node++) {
+                    body.accept(node);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeAction(from, middle, body), new RangeAction(middle, to, body));
+            }
+        }
+    }
+}
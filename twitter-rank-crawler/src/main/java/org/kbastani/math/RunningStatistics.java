@@ -0,0 +1,77 @@
+package org.kbastani.math;
+
+/**
+ * Accumulates the count, mean and sum of squared differences from the mean (M2) of a stream of values with
+ * Welford's algorithm, so the variance of the values is available without keeping them. Two accumulators are
+ * combined with the parallel update of Chan et al., which is the same update that merges a batch into the
+ * statistics stored on a user.
+ *
+ * @author kbastani
+ */
+public class RunningStatistics {
+
+    private long count;
+    private double mean;
+    private double m2;
+
+    public RunningStatistics() {
+    }
+
+    public RunningStatistics(long count, double mean, double m2) {
+        this.count = count;
+        this.mean = mean;
+        this.m2 = m2;
+    }
+
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    public void merge(RunningStatistics other) {
+        if (other.count == 0) {
+            return;
+        }
+
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        count = total;
+    }
+
+    /**
+     * Resets the accumulator, so that it can be reused for the next stream of values
+     */
+    public void clear() {
+        count = 0;
+        mean = 0.0;
+        m2 = 0.0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getM2() {
+        return m2;
+    }
+
+    public double getSum() {
+        return mean * count;
+    }
+
+    /**
+     * @return the population standard deviation of the values, like {@link Statistics#standardDeviation(double[])},
+     * or 0 when there are no values
+     */
+    public double getStandardDeviation() {
+        return count == 0 ? 0.0 : Math.sqrt(m2 / count);
+    }
+}
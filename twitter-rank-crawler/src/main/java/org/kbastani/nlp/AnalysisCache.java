@@ -0,0 +1,329 @@
+package org.kbastani.nlp;
+
+import com.google.common.hash.Hashing;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A size-bounded cache of natural language API results that sits in front of {@link TextAnalysis}. Entries are
+ * keyed by a hash of the operation and the text, so that repeated tweets, as well as retried activity scans, are
+ * not sent to the paid API again. Results are stored as serialized protocol buffers, and the least recently used
+ * entries are evicted once {@code nlp.cache.max-entries} is reached.
+ * <p>
+ * Only the results of classification and sentiment, which do not refer to positions in the text, are keyed by the
+ * normalized text and shared by near-identical tweets. The other operations return tokens, mentions, and sentences
+ * with offsets into the text that was analyzed, so they are keyed by the exact text.
+ * <p>
+ * When {@code nlp.cache.directory} is set, evicted entries are spilled to that directory and all entries are
+ * written there on shutdown, so that results survive a restart of the crawler. Evicted entries wait for the spill
+ * thread in a queue of {@code nlp.cache.spill-queue-size} entries, and are dropped rather than held on the heap when
+ * evictions outpace the disk. Once the files in the directory exceed {@code nlp.cache.directory-max-bytes}, the
+ * files that were least recently written or read are deleted until they take up nine tenths of it.
+ *
+ * @author kbastani
+ */
+@Component
+public class AnalysisCache implements DisposableBean {
+
+    private static final Pattern URL = Pattern.compile("https?://\\S+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Set<String> NORMALIZED_OPERATIONS = new HashSet<>(Arrays.asList("classifyText",
+            "analyzeSentiment"));
+
+    private final Log log = LogFactory.getLog(AnalysisCache.class);
+    private final int maxEntries;
+    private final Path directory;
+    private final Map<String, byte[]> entries;
+    private final ExecutorService spillExecutor;
+    private final MeterRegistry meterRegistry;
+    private final long directoryMaxBytes;
+    private final AtomicLong directoryBytes = new AtomicLong();
+
+    @Autowired
+    public AnalysisCache(@Value("${nlp.cache.max-entries:100000}") int maxEntries,
+                         @Value("${nlp.cache.directory:}") String directory,
+                         @Value("${nlp.cache.spill-queue-size:10000}") int spillQueueSize,
+                         @Value("${nlp.cache.directory-max-bytes:1073741824}") long directoryMaxBytes,
+                         MeterRegistry meterRegistry) {
+        this.maxEntries = maxEntries;
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+        this.meterRegistry = meterRegistry;
+        this.directoryMaxBytes = directoryMaxBytes;
+
+        Counter dropped = meterRegistry.counter("nlp.cache.spill.dropped");
+        this.spillExecutor = this.directory == null ? null : new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(spillQueueSize), runnable -> {
+            Thread thread = new Thread(runnable, "nlp-cache-spill");
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, executor) -> dropped.increment());
+
+        if (this.directory != null) {
+            directoryBytes.set(files().stream().mapToLong(AnalysisCache::size).sum());
+        }
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (size() > AnalysisCache.this.maxEntries) {
+                    spill(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        meterRegistry.gauge("nlp.cache.size", this, AnalysisCache::size);
+    }
+
+    /**
+     * Returns the cached result of an operation on a text, or loads, caches, and returns it when it is missing.
+     *
+     * @param operation is the name of the natural language operation
+     * @param text      is the text that is analyzed
+     * @param parser    parses a serialized result of the operation
+     * @param loader    calls the natural language API when the result is not cached
+     * @return a future that completes with the result of the operation
+     */
+    public <T extends Message> CompletableFuture<T> computeIfAbsent(String operation, String text, Parser<T> parser,
+                                                                    Supplier<CompletableFuture<T>> loader) {
+        T cached = get(operation, text, parser);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return loader.get().thenApply(result -> {
+            put(operation, text, result);
+            return result;
+        });
+    }
+
+    /**
+     * @return the cached result of an operation on a text, or null if it is not cached
+     */
+    public <T extends Message> T get(String operation, String text, Parser<T> parser) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+
+        String key = key(operation, text);
+        byte[] value;
+
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+
+        if (value == null && directory != null) {
+            value = load(key);
+            if (value != null) {
+                synchronized (entries) {
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        if (value != null) {
+            try {
+                T result = parser.parseFrom(value);
+                counter(operation, "hit").increment();
+                return result;
+            } catch (InvalidProtocolBufferException ex) {
+                log.warn(String.format("Discarding unreadable cached %s result", operation), ex);
+            }
+        }
+
+        counter(operation, "miss").increment();
+        return null;
+    }
+
+    /**
+     * Caches the result of an operation on a text.
+     */
+    public void put(String operation, String text, Message result) {
+        if (maxEntries > 0) {
+            byte[] value = result.toByteArray();
+            synchronized (entries) {
+                entries.put(key(operation, text), value);
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Normalizes text so that tweets that differ only by links, whitespace, or letter case share an entry of an
+     * operation whose result does not depend on the positions in the text.
+     */
+    static String normalize(String text) {
+        return WHITESPACE.matcher(URL.matcher(text).replaceAll(" ")).replaceAll(" ").trim().toLowerCase();
+    }
+
+    static String key(String operation, String text) {
+        return Hashing.sha256().newHasher()
+                .putString(operation, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(NORMALIZED_OPERATIONS.contains(operation) ? normalize(text) : text, StandardCharsets.UTF_8)
+                .hash()
+                .toString();
+    }
+
+    private Counter counter(String operation, String result) {
+        return meterRegistry.counter("nlp.cache.requests", "operation", operation, "result", result);
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private void spill(String key, byte[] value) {
+        if (spillExecutor != null) {
+            spillExecutor.execute(() -> write(key, value));
+        }
+    }
+
+    private void write(String key, byte[] value) {
+        try {
+            Path path = path(key);
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(path.getParent(), key, ".tmp");
+            Files.write(temp, value);
+            long replaced = size(path);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (directoryBytes.addAndGet(value.length - replaced) > directoryMaxBytes) {
+                prune();
+            }
+        } catch (IOException ex) {
+            log.warn(String.format("Could not spill NLP result to %s", directory), ex);
+        }
+    }
+
+    /**
+     * Deletes the least recently used spilled results until they take up nine tenths of the size cap
+     */
+    private synchronized void prune() {
+        List<Path> files = files();
+        files.sort(Comparator.comparingLong(AnalysisCache::lastModified));
+        long target = directoryMaxBytes / 10 * 9;
+        int deleted = 0;
+
+        for (Path file : files) {
+            if (directoryBytes.get() <= target) {
+                break;
+            }
+            long size = size(file);
+            try {
+                if (Files.deleteIfExists(file)) {
+                    directoryBytes.addAndGet(-size);
+                    deleted++;
+                }
+            } catch (IOException ex) {
+                log.warn(String.format("Could not delete spilled NLP result %s", file), ex);
+            }
+        }
+
+        log.info(String.format("Deleted %s spilled NLP results from %s", deleted, directory));
+    }
+
+    private List<Path> files() {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (NoSuchFileException ex) {
+            return new ArrayList<>();
+        } catch (IOException ex) {
+            log.warn(String.format("Could not list spilled NLP results in %s", directory), ex);
+            return new ArrayList<>();
+        }
+    }
+
+    private static long size(Path path) {
+        try {
+            return Files.exists(path) ? Files.size(path) : 0;
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private byte[] load(String key) {
+        Path path = path(key);
+
+        try {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            // A result that is read is kept the longest when the directory is pruned
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return Files.readAllBytes(path);
+        } catch (IOException ex) {
+            log.warn(String.format("Could not read spilled NLP result from %s", path), ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (spillExecutor != null) {
+            List<Map.Entry<String, byte[]>> remaining;
+            synchronized (entries) {
+                remaining = new ArrayList<>(entries.entrySet());
+            }
+            spillExecutor.shutdown();
+            try {
+                spillExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            // The entries are written on this thread, since the spill queue could not hold them all
+            log.info(String.format("Writing %s cached NLP results to %s...", remaining.size(), directory));
+            remaining.forEach(entry -> write(entry.getKey(), entry.getValue()));
+        }
+    }
+}
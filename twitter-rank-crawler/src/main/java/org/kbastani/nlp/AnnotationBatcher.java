@@ -0,0 +1,223 @@
+package org.kbastani.nlp;
+
+import com.google.cloud.language.v1.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Packs many short texts, such as tweets, into a single document for the annotateText operation and splits the
+ * response back into one {@link AnnotateTextResponse} per text. Each text is placed in its own paragraph and is
+ * terminated as a sentence, so that sentences and entity mentions can be assigned back to their original text
+ * using the UTF-16 offsets reported by the API.
+ *
+ * @author kbastani
+ */
+@Component
+public class AnnotationBatcher {
+
+    private static final String SEPARATOR = "\n\n";
+
+    private final TextAnalysis textAnalysis;
+    private final AnalysisCache cache;
+    private final int maxBytes;
+    private final int maxTexts;
+
+    @Autowired
+    public AnnotationBatcher(TextAnalysis textAnalysis, AnalysisCache cache,
+                             @Value("${nlp.batch.max-bytes:5000}") int maxBytes,
+                             @Value("${nlp.batch.max-texts:20}") int maxTexts) {
+        this.textAnalysis = textAnalysis;
+        this.cache = cache;
+        this.maxBytes = maxBytes;
+        this.maxTexts = maxTexts;
+    }
+
+    /**
+     * Annotates a list of texts using as few requests as the byte budget allows. Texts that have a cached
+     * annotation are not sent, and the annotation of every text that is sent is added to the cache.
+     *
+     * @param texts are the texts to annotate
+     * @return a future for each text, in the same order as the texts, that completes with an annotation that has
+     * offsets relative to the start of that text
+     */
+    public List<CompletableFuture<AnnotateTextResponse>> annotate(List<String> texts) {
+        List<CompletableFuture<AnnotateTextResponse>> results = new ArrayList<>(texts.size());
+        Batch batch = new Batch();
+
+        for (String text : texts) {
+            AnnotateTextResponse cached = cache.get(TextAnalysis.ANNOTATE_TEXT, text, AnnotateTextResponse.parser());
+
+            if (cached != null) {
+                results.add(CompletableFuture.completedFuture(cached));
+                continue;
+            }
+
+            int bytes = utf8Length(text) + SEPARATOR.length() + 1;
+
+            if (batch.size() > 0 && (batch.bytes + bytes > maxBytes || batch.size() >= maxTexts)) {
+                batch.submit();
+                batch = new Batch();
+            }
+
+            batch.add(text, bytes);
+            results.add(batch.results.get(batch.size() - 1));
+        }
+
+        if (batch.size() > 0) {
+            batch.submit();
+        }
+
+        return results;
+    }
+
+    /**
+     * Extracts the part of an annotation that belongs to the text between {@code start} and {@code end} of the
+     * annotated document. Sentences and entity mentions are assigned by their begin offset and are rebased to
+     * the start of the text. The document sentiment is derived from the sentences of the text, and entity
+     * salience is renormalized over the entities that are mentioned in the text.
+     */
+    static AnnotateTextResponse segment(AnnotateTextResponse response, int start, int end) {
+        AnnotateTextResponse.Builder result = AnnotateTextResponse.newBuilder()
+                .setLanguage(response.getLanguage());
+        float score = 0f, magnitude = 0f;
+
+        for (Sentence sentence : response.getSentencesList()) {
+            int offset = sentence.getText().getBeginOffset();
+            if (offset >= start && offset < end) {
+                String content = sentence.getText().getContent();
+                result.addSentences(sentence.toBuilder()
+                        .setText(TextSpan.newBuilder()
+                                .setContent(content.substring(0, Math.min(content.length(), end - offset)))
+                                .setBeginOffset(offset - start)));
+                score += sentence.getSentiment().getScore();
+                magnitude += sentence.getSentiment().getMagnitude();
+            }
+        }
+
+        result.setDocumentSentiment(Sentiment.newBuilder()
+                .setScore(result.getSentencesCount() == 0 ? 0f : score / result.getSentencesCount())
+                .setMagnitude(magnitude));
+
+        List<Entity.Builder> entities = new ArrayList<>();
+        float totalSalience = 0f;
+
+        for (Entity entity : response.getEntitiesList()) {
+            Entity.Builder segmentEntity = entity.toBuilder().clearMentions();
+            float mentionScore = 0f, mentionMagnitude = 0f;
+
+            for (EntityMention mention : entity.getMentionsList()) {
+                int offset = mention.getText().getBeginOffset();
+                if (offset >= start && offset < end) {
+                    segmentEntity.addMentions(mention.toBuilder()
+                            .setText(mention.getText().toBuilder().setBeginOffset(offset - start)));
+                    mentionScore += mention.getSentiment().getScore();
+                    mentionMagnitude += mention.getSentiment().getMagnitude();
+                }
+            }
+
+            if (segmentEntity.getMentionsCount() > 0) {
+                float salience = entity.getSalience() * segmentEntity.getMentionsCount() / entity.getMentionsCount();
+                totalSalience += salience;
+                segmentEntity.setSalience(salience);
+                if (entity.hasSentiment()) {
+                    segmentEntity.setSentiment(Sentiment.newBuilder()
+                            .setScore(mentionScore / segmentEntity.getMentionsCount())
+                            .setMagnitude(mentionMagnitude));
+                }
+                entities.add(segmentEntity);
+            }
+        }
+
+        for (Entity.Builder entity : entities) {
+            if (totalSalience > 0f) {
+                entity.setSalience(entity.getSalience() / totalSalience);
+            }
+            result.addEntities(entity);
+        }
+
+        return result.build();
+    }
+
+    private static int utf8Length(String text) {
+        int bytes = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+
+        return bytes;
+    }
+
+    private static boolean endsSentence(String text) {
+        for (int i = text.length() - 1; i >= 0; i--) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '.' || c == '!' || c == '?';
+            }
+        }
+        return true;
+    }
+
+    private class Batch {
+        private final List<String> texts = new ArrayList<>();
+        private final List<CompletableFuture<AnnotateTextResponse>> results = new ArrayList<>();
+        private int bytes = 0;
+
+        int size() {
+            return texts.size();
+        }
+
+        void add(String text, int textBytes) {
+            texts.add(text);
+            results.add(new CompletableFuture<>());
+            bytes += textBytes;
+        }
+
+        void submit() {
+            StringBuilder document = new StringBuilder(bytes);
+            int[] starts = new int[texts.size()];
+            int[] ends = new int[texts.size()];
+
+            for (int i = 0; i < texts.size(); i++) {
+                String text = texts.get(i);
+                if (i > 0) {
+                    document.append(SEPARATOR);
+                }
+                starts[i] = document.length();
+                document.append(text);
+                ends[i] = document.length();
+                if (texts.size() > 1 && !endsSentence(text)) {
+                    document.append('.');
+                }
+            }
+
+            textAnalysis.annotateDocumentAsync(document.toString()).whenComplete((response, error) -> {
+                for (int i = 0; i < texts.size(); i++) {
+                    if (error != null) {
+                        results.get(i).completeExceptionally(error);
+                    } else {
+                        AnnotateTextResponse annotation = texts.size() == 1 ? response :
+                                segment(response, starts[i], ends[i]);
+                        cache.put(TextAnalysis.ANNOTATE_TEXT, texts.get(i), annotation);
+                        results.get(i).complete(annotation);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.kbastani.nlp;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.language.v1.*;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A {@link LanguageBackend} for the Google Cloud Natural Language API. A single {@link LanguageServiceClient}
+ * is created on first use and shared by every request for the lifetime of the application, so the cost of
+ * setting up the gRPC channels is paid once instead of once per tweet.
+ *
+ * @author kbastani
+ */
+public class GoogleLanguageBackend implements LanguageBackend, DisposableBean {
+
+    private final Log log = LogFactory.getLog(GoogleLanguageBackend.class);
+    private final int channelPoolSize;
+    private volatile LanguageServiceClient client;
+
+    public GoogleLanguageBackend(int channelPoolSize) {
+        this.channelPoolSize = channelPoolSize;
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeSentimentResponse> analyzeSentiment(AnalyzeSentimentRequest request) {
+        return call(LanguageServiceClient::analyzeSentimentCallable, request);
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeEntitiesResponse> analyzeEntities(AnalyzeEntitiesRequest request) {
+        return call(LanguageServiceClient::analyzeEntitiesCallable, request);
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeEntitySentimentResponse> analyzeEntitySentiment(
+            AnalyzeEntitySentimentRequest request) {
+        return call(LanguageServiceClient::analyzeEntitySentimentCallable, request);
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeSyntaxResponse> analyzeSyntax(AnalyzeSyntaxRequest request) {
+        return call(LanguageServiceClient::analyzeSyntaxCallable, request);
+    }
+
+    @Override
+    public CompletableFuture<ClassifyTextResponse> classifyText(ClassifyTextRequest request) {
+        return call(LanguageServiceClient::classifyTextCallable, request);
+    }
+
+    @Override
+    public CompletableFuture<AnnotateTextResponse> annotateText(AnnotateTextRequest request) {
+        return call(LanguageServiceClient::annotateTextCallable, request);
+    }
+
+    /**
+     * Issues an asynchronous unary call on the shared client and adapts the {@link ApiFuture} that is returned
+     * by the gRPC stub to a {@link CompletableFuture}.
+     */
+    private <Q, R> CompletableFuture<R> call(Function<LanguageServiceClient, UnaryCallable<Q, R>> callable,
+                                             Q request) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+
+        try {
+            ApiFuture<R> future = callable.apply(getClient()).futureCall(request);
+            ApiFutures.addCallback(future, new ApiFutureCallback<R>() {
+                @Override
+                public void onFailure(Throwable t) {
+                    result.completeExceptionally(t);
+                }
+
+                @Override
+                public void onSuccess(R response) {
+                    result.complete(response);
+                }
+            }, MoreExecutors.directExecutor());
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Lazily creates the shared client so that the application can start without GCP credentials.
+     */
+    private LanguageServiceClient getClient() throws IOException {
+        LanguageServiceClient current = client;
+
+        if (current == null) {
+            synchronized (this) {
+                current = client;
+                if (current == null) {
+                    log.info(String.format("Opening Natural Language API client with %s channels...",
+                            channelPoolSize));
+                    LanguageServiceSettings settings = LanguageServiceSettings.newBuilder()
+                            .setTransportChannelProvider(LanguageServiceSettings.defaultGrpcTransportProviderBuilder()
+                                    .setPoolSize(channelPoolSize)
+                                    .build())
+                            .build();
+                    client = current = LanguageServiceClient.create(settings);
+                }
+            }
+        }
+
+        return current;
+    }
+
+    @Override
+    public void destroy() {
+        LanguageServiceClient current = client;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.kbastani.nlp;
+
+import com.google.cloud.language.v1.*;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The {@link LanguageBackend} is the transport used by {@link TextAnalysis} to reach a natural language
+ * service. Every call is non-blocking and completes its future when the remote response arrives, which
+ * allows many requests to be pipelined over a single long-lived connection.
+ *
+ * @author kbastani
+ */
+public interface LanguageBackend {
+
+    CompletableFuture<AnalyzeSentimentResponse> analyzeSentiment(AnalyzeSentimentRequest request);
+
+    CompletableFuture<AnalyzeEntitiesResponse> analyzeEntities(AnalyzeEntitiesRequest request);
+
+    CompletableFuture<AnalyzeEntitySentimentResponse> analyzeEntitySentiment(AnalyzeEntitySentimentRequest request);
+
+    CompletableFuture<AnalyzeSyntaxResponse> analyzeSyntax(AnalyzeSyntaxRequest request);
+
+    CompletableFuture<ClassifyTextResponse> classifyText(ClassifyTextRequest request);
+
+    CompletableFuture<AnnotateTextResponse> annotateText(AnnotateTextRequest request);
+}
@@ -0,0 +1,317 @@
+package org.kbastani.nlp;
+
+import com.google.cloud.language.v1.*;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A local stand-in for the Natural Language API that runs without network access or GCP credentials. Responses
+ * are produced from a small word lexicon and are deterministic for the same input, and an optional simulated
+ * round trip latency makes it possible to measure the throughput of the NLP pipeline offline.
+ *
+ * @author kbastani
+ */
+public class LocalLanguageBackend implements LanguageBackend, DisposableBean {
+
+    private static final Set<String> POSITIVE = new HashSet<>(Arrays.asList("good", "great", "love", "awesome",
+            "excellent", "happy", "best", "amazing", "nice", "thanks", "fun", "win", "cool", "beautiful", "enjoy"));
+    private static final Set<String> NEGATIVE = new HashSet<>(Arrays.asList("bad", "terrible", "hate", "awful",
+            "worst", "sad", "angry", "broken", "fail", "poor", "ugly", "boring", "lose", "wrong", "annoying"));
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList("the", "and", "for", "are", "but",
+            "not", "you", "all", "any", "can", "had", "her", "was", "one", "our", "out", "has", "him", "his", "how",
+            "its", "new", "now", "see", "who", "did", "get", "got", "let", "say", "she", "too", "use", "this", "that",
+            "with", "have", "from", "they", "will", "what", "when", "your", "just", "been", "were", "than", "them",
+            "then", "there", "their", "about", "would", "which", "into", "very", "some", "more"));
+    private static final Map<String, String> CATEGORIES = new LinkedHashMap<>();
+
+    static {
+        CATEGORIES.put("java", "/Computers & Electronics/Programming");
+        CATEGORIES.put("code", "/Computers & Electronics/Programming");
+        CATEGORIES.put("software", "/Computers & Electronics/Software");
+        CATEGORIES.put("cloud", "/Internet & Telecom/Web Services");
+        CATEGORIES.put("game", "/Sports");
+        CATEGORIES.put("music", "/Arts & Entertainment/Music & Audio");
+        CATEGORIES.put("movie", "/Arts & Entertainment/Movies");
+        CATEGORIES.put("food", "/Food & Drink");
+    }
+
+    private final long latencyMillis;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "local-nlp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LocalLanguageBackend(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return the number of requests that have been served by this backend
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeSentimentResponse> analyzeSentiment(AnalyzeSentimentRequest request) {
+        return respond(() -> {
+            List<Sentence> sentences = sentences(request.getDocument().getContent());
+            return AnalyzeSentimentResponse.newBuilder()
+                    .setDocumentSentiment(documentSentiment(sentences))
+                    .addAllSentences(sentences)
+                    .setLanguage("en")
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeEntitiesResponse> analyzeEntities(AnalyzeEntitiesRequest request) {
+        return respond(() -> {
+            String text = request.getDocument().getContent();
+            return AnalyzeEntitiesResponse.newBuilder()
+                    .addAllEntities(entities(text, sentences(text), false))
+                    .setLanguage("en")
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeEntitySentimentResponse> analyzeEntitySentiment(
+            AnalyzeEntitySentimentRequest request) {
+        return respond(() -> {
+            String text = request.getDocument().getContent();
+            return AnalyzeEntitySentimentResponse.newBuilder()
+                    .addAllEntities(entities(text, sentences(text), true))
+                    .setLanguage("en")
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<AnalyzeSyntaxResponse> analyzeSyntax(AnalyzeSyntaxRequest request) {
+        return respond(() -> {
+            String text = request.getDocument().getContent();
+            AnalyzeSyntaxResponse.Builder response = AnalyzeSyntaxResponse.newBuilder()
+                    .addAllSentences(sentences(text))
+                    .setLanguage("en");
+            words(text, 0, text.length()).forEach(word -> response.addTokens(Token.newBuilder()
+                    .setText(word)
+                    .setLemma(word.getContent().toLowerCase())));
+            return response.build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<ClassifyTextResponse> classifyText(ClassifyTextRequest request) {
+        return respond(() -> ClassifyTextResponse.newBuilder()
+                .addAllCategories(categories(request.getDocument().getContent()))
+                .build());
+    }
+
+    @Override
+    public CompletableFuture<AnnotateTextResponse> annotateText(AnnotateTextRequest request) {
+        return respond(() -> {
+            String text = request.getDocument().getContent();
+            AnnotateTextRequest.Features features = request.getFeatures();
+            List<Sentence> sentences = sentences(text);
+            AnnotateTextResponse.Builder response = AnnotateTextResponse.newBuilder()
+                    .addAllSentences(sentences)
+                    .setLanguage("en");
+
+            if (features.getExtractDocumentSentiment()) {
+                response.setDocumentSentiment(documentSentiment(sentences));
+            }
+            if (features.getExtractEntities() || features.getExtractEntitySentiment()) {
+                response.addAllEntities(entities(text, sentences, features.getExtractEntitySentiment()));
+            }
+            if (features.getExtractSyntax()) {
+                words(text, 0, text.length()).forEach(word -> response.addTokens(Token.newBuilder()
+                        .setText(word)
+                        .setLemma(word.getContent().toLowerCase())));
+            }
+            if (features.getClassifyText()) {
+                response.addAllCategories(categories(text));
+            }
+
+            return response.build();
+        });
+    }
+
+    private <T> CompletableFuture<T> respond(Supplier<T> response) {
+        requestCount.incrementAndGet();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.schedule(() -> {
+            try {
+                result.complete(response.get());
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Splits text into sentences at terminal punctuation and line breaks. Offsets are reported in UTF-16 code
+     * units, which are the same as Java string indices.
+     */
+    static List<Sentence> sentences(String text) {
+        List<Sentence> sentences = new ArrayList<>();
+        int start = 0;
+
+        for (int i = 0; i <= text.length(); i++) {
+            boolean end = i == text.length() || text.charAt(i) == '\n' ||
+                    ((text.charAt(i) == '.' || text.charAt(i) == '!' || text.charAt(i) == '?') &&
+                            (i + 1 == text.length() || Character.isWhitespace(text.charAt(i + 1))));
+
+            if (end) {
+                int to = i < text.length() && text.charAt(i) != '\n' ? i + 1 : i;
+                while (start < to && Character.isWhitespace(text.charAt(start))) {
+                    start++;
+                }
+                if (start < to) {
+                    sentences.add(Sentence.newBuilder()
+                            .setText(TextSpan.newBuilder()
+                                    .setContent(text.substring(start, to))
+                                    .setBeginOffset(start))
+                            .setSentiment(sentiment(text, start, to))
+                            .build());
+                }
+                start = to;
+            }
+        }
+
+        return sentences;
+    }
+
+    private static List<ClassificationCategory> categories(String text) {
+        String lower = text.toLowerCase();
+        return CATEGORIES.entrySet().stream()
+                .filter(category -> lower.contains(category.getKey()))
+                .map(Map.Entry::getValue)
+                .distinct()
+                .map(name -> ClassificationCategory.newBuilder()
+                        .setName(name)
+                        .setConfidence(0.5f)
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    private static Sentiment sentiment(String text, int from, int to) {
+        int positive = 0, negative = 0;
+
+        for (TextSpan word : words(text, from, to)) {
+            String lower = word.getContent().toLowerCase();
+            if (POSITIVE.contains(lower)) positive++;
+            if (NEGATIVE.contains(lower)) negative++;
+        }
+
+        float score = positive + negative == 0 ? 0f : (positive - negative) / (float) (positive + negative);
+        return Sentiment.newBuilder()
+                .setScore(score)
+                .setMagnitude((positive + negative) * 0.5f)
+                .build();
+    }
+
+    private static Sentiment documentSentiment(List<Sentence> sentences) {
+        float score = 0f, magnitude = 0f;
+
+        for (Sentence sentence : sentences) {
+            score += sentence.getSentiment().getScore();
+            magnitude += sentence.getSentiment().getMagnitude();
+        }
+
+        return Sentiment.newBuilder()
+                .setScore(sentences.isEmpty() ? 0f : score / sentences.size())
+                .setMagnitude(magnitude)
+                .build();
+    }
+
+    private static List<TextSpan> words(String text, int from, int to) {
+        List<TextSpan> words = new ArrayList<>();
+        int i = from;
+
+        while (i < to) {
+            if (Character.isLetterOrDigit(text.charAt(i))) {
+                int start = i;
+                while (i < to && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '\'')) {
+                    i++;
+                }
+                words.add(TextSpan.newBuilder().setContent(text.substring(start, i)).setBeginOffset(start).build());
+            } else {
+                i++;
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Treats every word that is not a stop word or a sentiment term as an entity, with one mention per
+     * occurrence. When sentiment is requested, each mention takes the sentiment of its sentence.
+     */
+    static List<Entity> entities(String text, List<Sentence> sentences, boolean includeSentiment) {
+        Map<String, Entity.Builder> entities = new LinkedHashMap<>();
+        int mentions = 0;
+
+        for (Sentence sentence : sentences) {
+            int from = sentence.getText().getBeginOffset();
+            int to = from + sentence.getText().getContent().length();
+
+            for (TextSpan word : words(text, from, to)) {
+                String name = word.getContent().toLowerCase();
+                if (name.length() < 3 || STOP_WORDS.contains(name) || POSITIVE.contains(name) ||
+                        NEGATIVE.contains(name)) {
+                    continue;
+                }
+
+                EntityMention.Builder mention = EntityMention.newBuilder()
+                        .setText(word)
+                        .setType(EntityMention.Type.COMMON);
+                if (includeSentiment) {
+                    mention.setSentiment(sentence.getSentiment());
+                }
+
+                entities.computeIfAbsent(name, n -> Entity.newBuilder()
+                        .setName(word.getContent())
+                        .setType(Entity.Type.OTHER))
+                        .addMentions(mention);
+                mentions++;
+            }
+        }
+
+        List<Entity> results = new ArrayList<>();
+
+        for (Entity.Builder entity : entities.values()) {
+            entity.setSalience(entity.getMentionsCount() / (float) mentions);
+            if (includeSentiment) {
+                float score = 0f, magnitude = 0f;
+                for (EntityMention mention : entity.getMentionsList()) {
+                    score += mention.getSentiment().getScore();
+                    magnitude += mention.getSentiment().getMagnitude();
+                }
+                entity.setSentiment(Sentiment.newBuilder()
+                        .setScore(score / entity.getMentionsCount())
+                        .setMagnitude(magnitude));
+            }
+            results.add(entity.build());
+        }
+
+        results.sort(Comparator.comparing(Entity::getSalience).reversed());
+        return results;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
@@ -1,158 +1,251 @@
 package org.kbastani.nlp;
 
 import com.google.cloud.language.v1.*;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 
 /**
- * This class is modified from the examples provided by Google Cloud Natural Language.
+ * This class is the gateway to the natural language API. It was originally modified from the examples provided
+ * by Google Cloud Natural Language, and now shares one long-lived {@link LanguageBackend} across every request
+ * instead of opening a new client per call. Each operation has a blocking variant and a non-blocking
+ * {@link CompletableFuture} variant, and the number of requests in flight is capped by {@code nlp.max-concurrency}.
+ * Results are looked up in the {@link AnalysisCache} before a request is sent.
+ *
+ * @author kbastani
  */
+@Service
 public class TextAnalysis {
+
+    static final String ANNOTATE_TEXT = "annotateText";
+
+    private final LanguageBackend backend;
+    private final AnalysisCache cache;
+    private final Semaphore permits;
+    private final Queue<PendingCall<?>> pending = new ConcurrentLinkedQueue<>();
+
+    @Autowired
+    public TextAnalysis(LanguageBackend backend, AnalysisCache cache,
+                        @Value("${nlp.max-concurrency:16}") int maxConcurrency) {
+        this.backend = backend;
+        this.cache = cache;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
     /**
      * Identifies entities in the string {@code text}.
      */
-    public static List<Entity> analyzeEntitiesText(String text) {
-        // [START language_entities_text]
-        // Instantiate the Language client com.google.cloud.language.v1.LanguageServiceClient
-        try (LanguageServiceClient language = LanguageServiceClient.create()) {
-            Document doc = Document.newBuilder()
-                    .setContent(text)
-                    .setType(Document.Type.PLAIN_TEXT)
-                    .build();
-            AnalyzeEntitiesRequest request = AnalyzeEntitiesRequest.newBuilder()
-                    .setDocument(doc)
-                    .setEncodingType(EncodingType.UTF16)
-                    .build();
-
-            AnalyzeEntitiesResponse response = language.analyzeEntities(request);
-
-            return response.getEntitiesList();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        // [END language_entities_text]
+    public List<Entity> analyzeEntitiesText(String text) {
+        return await(analyzeEntitiesTextAsync(text));
+    }
+
+    public CompletableFuture<List<Entity>> analyzeEntitiesTextAsync(String text) {
+        AnalyzeEntitiesRequest request = AnalyzeEntitiesRequest.newBuilder()
+                .setDocument(document(text))
+                .setEncodingType(EncodingType.UTF16)
+                .build();
 
-        return new ArrayList<>();
+        return cached("analyzeEntities", text, AnalyzeEntitiesResponse.parser(),
+                () -> backend.analyzeEntities(request))
+                .thenApply(AnalyzeEntitiesResponse::getEntitiesList);
     }
 
     /**
      * Identifies the sentiment in the string {@code text}.
      */
-    public static Sentiment analyzeSentimentText(String text) {
-        // [START language_sentiment_text]
-        // Instantiate the Language client com.google.cloud.language.v1.LanguageServiceClient
-        try (LanguageServiceClient language = LanguageServiceClient.create()) {
-            Document doc = Document.newBuilder()
-                    .setContent(text)
-                    .setType(Document.Type.PLAIN_TEXT)
-                    .build();
-            AnalyzeSentimentResponse response = language.analyzeSentiment(doc);
-            return response.getDocumentSentiment();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public Sentiment analyzeSentimentText(String text) {
+        return await(analyzeSentimentTextAsync(text));
+    }
 
-        return null;
-        // [END language_sentiment_text]
+    public CompletableFuture<Sentiment> analyzeSentimentTextAsync(String text) {
+        AnalyzeSentimentRequest request = AnalyzeSentimentRequest.newBuilder()
+                .setDocument(document(text))
+                .setEncodingType(EncodingType.UTF16)
+                .build();
+
+        return cached("analyzeSentiment", text, AnalyzeSentimentResponse.parser(),
+                () -> backend.analyzeSentiment(request))
+                .thenApply(AnalyzeSentimentResponse::getDocumentSentiment);
     }
 
     /**
-     * from the string {@code text}.
+     * Identifies the syntax tokens in the string {@code text}.
      */
-    public static List<Token> analyzeSyntaxText(String text) throws Exception {
-        // [START language_syntax_text]
-        // Instantiate the Language client com.google.cloud.language.v1.LanguageServiceClient
-        try (LanguageServiceClient language = LanguageServiceClient.create()) {
-            Document doc = Document.newBuilder()
-                    .setContent(text)
-                    .setType(Document.Type.PLAIN_TEXT)
-                    .build();
-            AnalyzeSyntaxRequest request = AnalyzeSyntaxRequest.newBuilder()
-                    .setDocument(doc)
-                    .setEncodingType(EncodingType.UTF16)
-                    .build();
-            // analyze the syntax in the given text
-            AnalyzeSyntaxResponse response = language.analyzeSyntax(request);
-            // print the response
-            for (Token token : response.getTokensList()) {
-                System.out.printf("\tText: %s\n", token.getText().getContent());
-                System.out.printf("\tBeginOffset: %d\n", token.getText().getBeginOffset());
-                System.out.printf("Lemma: %s\n", token.getLemma());
-                System.out.printf("PartOfSpeechTag: %s\n", token.getPartOfSpeech().getTag());
-                System.out.printf("\tAspect: %s\n", token.getPartOfSpeech().getAspect());
-                System.out.printf("\tCase: %s\n", token.getPartOfSpeech().getCase());
-                System.out.printf("\tForm: %s\n", token.getPartOfSpeech().getForm());
-                System.out.printf("\tGender: %s\n", token.getPartOfSpeech().getGender());
-                System.out.printf("\tMood: %s\n", token.getPartOfSpeech().getMood());
-                System.out.printf("\tNumber: %s\n", token.getPartOfSpeech().getNumber());
-                System.out.printf("\tPerson: %s\n", token.getPartOfSpeech().getPerson());
-                System.out.printf("\tProper: %s\n", token.getPartOfSpeech().getProper());
-                System.out.printf("\tReciprocity: %s\n", token.getPartOfSpeech().getReciprocity());
-                System.out.printf("\tTense: %s\n", token.getPartOfSpeech().getTense());
-                System.out.printf("\tVoice: %s\n", token.getPartOfSpeech().getVoice());
-                System.out.println("DependencyEdge");
-                System.out.printf("\tHeadTokenIndex: %d\n", token.getDependencyEdge().getHeadTokenIndex());
-                System.out.printf("\tLabel: %s\n\n", token.getDependencyEdge().getLabel());
-            }
-            return response.getTokensList();
-        }
-        // [END language_syntax_text]
+    public List<Token> analyzeSyntaxText(String text) {
+        return await(analyzeSyntaxTextAsync(text));
+    }
+
+    public CompletableFuture<List<Token>> analyzeSyntaxTextAsync(String text) {
+        AnalyzeSyntaxRequest request = AnalyzeSyntaxRequest.newBuilder()
+                .setDocument(document(text))
+                .setEncodingType(EncodingType.UTF16)
+                .build();
+
+        return cached("analyzeSyntax", text, AnalyzeSyntaxResponse.parser(),
+                () -> backend.analyzeSyntax(request))
+                .thenApply(AnalyzeSyntaxResponse::getTokensList);
     }
 
     /**
      * Detects categories in text using the Language Beta API.
-     *
-     * @return
      */
-    public static List<ClassificationCategory> classifyText(String text) {
-
-        List<ClassificationCategory> results = new ArrayList<>();
-        // [START language_classify_text]
-        // Instantiate the Language client com.google.cloud.language.v1.LanguageServiceClient
-        try (LanguageServiceClient language = LanguageServiceClient.create()) {
-            // set content to the text string
-            Document doc = Document.newBuilder()
-                    .setContent(text)
-                    .setType(Document.Type.PLAIN_TEXT)
-                    .build();
-            ClassifyTextRequest request = ClassifyTextRequest.newBuilder()
-                    .setDocument(doc)
-                    .build();
-            // detect categories in the given text
-            ClassifyTextResponse response = language.classifyText(request);
-
-            results = response.getCategoriesList();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public List<ClassificationCategory> classifyText(String text) {
+        return await(classifyTextAsync(text));
+    }
 
-        return results;
-        // [END language_classify_text]
+    public CompletableFuture<List<ClassificationCategory>> classifyTextAsync(String text) {
+        ClassifyTextRequest request = ClassifyTextRequest.newBuilder()
+                .setDocument(document(text))
+                .build();
+
+        return cached("classifyText", text, ClassifyTextResponse.parser(),
+                () -> backend.classifyText(request))
+                .thenApply(ClassifyTextResponse::getCategoriesList);
     }
 
     /**
      * Detects the entity sentiments in the string {@code text} using the Language Beta API.
-     *
-     * @return
      */
-    public static List<Entity> entitySentimentText(String text) {
-        // [START language_entity_sentiment_text]
-        // Instantiate the Language client com.google.cloud.language.v1.LanguageServiceClient
-        try (LanguageServiceClient language = LanguageServiceClient.create()) {
-            Document doc = Document.newBuilder()
-                    .setContent(text).setType(Document.Type.PLAIN_TEXT).build();
-            AnalyzeEntitySentimentRequest request = AnalyzeEntitySentimentRequest.newBuilder()
-                    .setDocument(doc)
-                    .setEncodingType(EncodingType.UTF16).build();
-            // detect entity sentiments in the given string
-            AnalyzeEntitySentimentResponse response = language.analyzeEntitySentiment(request);
-            // Print the response
-            return response.getEntitiesList();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    public List<Entity> entitySentimentText(String text) {
+        return await(entitySentimentTextAsync(text));
+    }
+
+    public CompletableFuture<List<Entity>> entitySentimentTextAsync(String text) {
+        AnalyzeEntitySentimentRequest request = AnalyzeEntitySentimentRequest.newBuilder()
+                .setDocument(document(text))
+                .setEncodingType(EncodingType.UTF16)
+                .build();
+
+        return cached("analyzeEntitySentiment", text, AnalyzeEntitySentimentResponse.parser(),
+                () -> backend.analyzeEntitySentiment(request))
+                .thenApply(AnalyzeEntitySentimentResponse::getEntitiesList);
+    }
+
+    /**
+     * Extracts the document sentiment, the entities, and the sentiment of each entity in the string {@code text}
+     * with a single request.
+     */
+    public AnnotateTextResponse annotateText(String text) {
+        return await(annotateTextAsync(text));
+    }
+
+    public CompletableFuture<AnnotateTextResponse> annotateTextAsync(String text) {
+        AnnotateTextRequest request = annotateTextRequest(text);
+
+        return cached(ANNOTATE_TEXT, text, AnnotateTextResponse.parser(),
+                () -> backend.annotateText(request));
+    }
+
+    /**
+     * Annotates a document without reading or writing the result cache. This is used for documents that pack
+     * many texts together, where the result is cached for each text after it has been split.
+     */
+    CompletableFuture<AnnotateTextResponse> annotateDocumentAsync(String document) {
+        return submit(() -> backend.annotateText(annotateTextRequest(document)));
+    }
+
+    private static AnnotateTextRequest annotateTextRequest(String text) {
+        return AnnotateTextRequest.newBuilder()
+                .setDocument(document(text))
+                .setFeatures(AnnotateTextRequest.Features.newBuilder()
+                        .setExtractDocumentSentiment(true)
+                        .setExtractEntities(true)
+                        .setExtractEntitySentiment(true))
+                .setEncodingType(EncodingType.UTF16)
+                .build();
+    }
+
+    private static Document document(String text) {
+        return Document.newBuilder()
+                .setContent(text)
+                .setType(Document.Type.PLAIN_TEXT)
+                .build();
+    }
+
+    private <T extends Message> CompletableFuture<T> cached(String operation, String text, Parser<T> parser,
+                                                           Supplier<CompletableFuture<T>> call) {
+        return cache.computeIfAbsent(operation, text, parser, () -> submit(call));
+    }
+
+    /**
+     * Queues a call to the backend and starts as many queued calls as the concurrency cap allows. Calls that
+     * cannot start immediately wait in the queue without blocking the caller, and are started as soon as an
+     * in-flight call completes.
+     */
+    private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call) {
+        PendingCall<T> pendingCall = new PendingCall<>(call);
+        pending.add(pendingCall);
+        dispatch();
+        return pendingCall.result;
+    }
+
+    private void dispatch() {
+        while (!pending.isEmpty() && permits.tryAcquire()) {
+            PendingCall<?> next = pending.poll();
+            if (next == null) {
+                permits.release();
+            } else {
+                next.start();
+            }
+        }
+    }
+
+    private void release() {
+        permits.release();
+        dispatch();
+    }
+
+    /**
+     * Waits for the result of an asynchronous call, rethrowing the cause of a failure as it was raised.
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    private class PendingCall<T> {
+        private final Supplier<CompletableFuture<T>> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        PendingCall(Supplier<CompletableFuture<T>> call) {
+            this.call = call;
+        }
+
+        void start() {
+            CompletableFuture<T> response;
+
+            try {
+                response = call.get();
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+                release();
+                return;
+            }
+
+            response.whenComplete((value, error) -> {
+                release();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
         }
-        // [END language_entity_sentiment_text]
     }
 }
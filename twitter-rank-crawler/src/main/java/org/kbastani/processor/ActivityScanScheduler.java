@@ -0,0 +1,172 @@
+package org.kbastani.processor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kbastani.tweet.TwitterService;
+import org.kbastani.twitter.Endpoint;
+import org.kbastani.twitter.RateLimitedException;
+import org.kbastani.twitter.TwitterClient;
+import org.kbastani.user.ActivityScanCandidate;
+import org.kbastani.user.User;
+import org.kbastani.user.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Schedules the activity scans of the ranked users. Every user has a due time in an in-memory queue, and up to
+ * {@code crawler.activity-scan.workers} users are scanned in parallel on a dedicated executor as long as the user
+ * timeline endpoint has requests left for them. After a scan the interval of the user is adapted to how much it
+ * tweeted since the last scan, so that active users are scanned often and quiet users rarely, between
+ * {@code crawler.activity-scan.min-interval} and {@code crawler.activity-scan.max-interval} milliseconds.
+ * <p>
+ * The queue is loaded from Neo4j on startup and periodically to pick up newly ranked users, and the adapted
+ * interval of each user is stored on its node so that it survives a restart.
+ *
+ * @author kbastani
+ */
+@Component
+public class ActivityScanScheduler {
+
+    // The number of statuses on a page of the user timeline, and the number that a scan should find
+    static final int PAGE_SIZE = 20;
+    static final int TARGET_STATUSES = PAGE_SIZE / 2;
+
+    // A scan reads the new statuses of a user and, until its history is imported, a page of older statuses
+    static final int REQUESTS_PER_SCAN = 2;
+
+    private final Log log = LogFactory.getLog(ActivityScanScheduler.class);
+    private final TwitterService twitterService;
+    private final UserRepository userRepository;
+    private final TwitterClient twitterClient;
+    private final ExecutorService executor;
+    private final int workers;
+    private final long minInterval;
+    private final long maxInterval;
+    private final PriorityQueue<Scan> queue = new PriorityQueue<>(Comparator.comparingLong(scan -> scan.dueAt));
+    private final Map<Long, Scan> scans = new HashMap<>();
+    private int inFlight;
+
+    @Autowired
+    public ActivityScanScheduler(TwitterService twitterService, UserRepository userRepository,
+                                 TwitterClient twitterClient, JobExecutors jobExecutors,
+                                 @Value("${crawler.activity-scan.workers:4}") int workers,
+                                 @Value("${crawler.activity-scan.min-interval:60000}") long minInterval,
+                                 @Value("${crawler.activity-scan.max-interval:86400000}") long maxInterval) {
+        this.twitterService = twitterService;
+        this.userRepository = userRepository;
+        this.twitterClient = twitterClient;
+        // Scans are only dispatched to idle workers, so the queue never holds more than the scans being handed off
+        this.executor = jobExecutors.create("activity-scan", workers, workers);
+        this.workers = workers;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Adds the ranked users in Neo4j that are not scheduled yet. A user that was never scanned is due
+     * immediately, and any other user is due one interval after its last scan.
+     */
+    public synchronized void refresh() {
+        List<ActivityScanCandidate> candidates = userRepository.findActivityScanCandidates();
+        int added = 0;
+
+        for (ActivityScanCandidate candidate : candidates) {
+            if (!scans.containsKey(candidate.getProfileId())) {
+                long interval = clamp(Optional.ofNullable(candidate.getActivityScanInterval()).orElse(minInterval));
+                Scan scan = new Scan(candidate.getProfileId(), interval);
+                scan.dueAt = candidate.getLastActivityScan() == null ? 0 : candidate.getLastActivityScan() + interval;
+                scans.put(scan.profileId, scan);
+                queue.add(scan);
+                added++;
+            }
+        }
+
+        log.info(String.format("Activity scan schedule refreshed, %s users added, %s users scheduled", added,
+                scans.size()));
+    }
+
+    /**
+     * Starts the scans of the users that are due, while fewer than the maximum number of scans are running and
+     * the user timeline endpoint has the requests left for each of them
+     */
+    public synchronized void dispatch() {
+        long now = System.currentTimeMillis();
+
+        while (inFlight < workers && !queue.isEmpty() && queue.peek().dueAt <= now &&
+                twitterClient.remaining(Endpoint.USER_TIMELINE) >= (inFlight + 1) * REQUESTS_PER_SCAN) {
+            Scan scan = queue.poll();
+            inFlight++;
+            executor.execute(() -> scan(scan));
+        }
+    }
+
+    private void scan(Scan scan) {
+        long delay = scan.interval;
+
+        try {
+            User user = userRepository.findUserByProfileId(scan.profileId);
+
+            if (user == null) {
+                synchronized (this) {
+                    scans.remove(scan.profileId);
+                }
+                return;
+            }
+
+            int statuses = twitterService.scanUserActivity(user);
+            scan.interval = nextInterval(scan.interval, statuses, minInterval, maxInterval);
+            userRepository.updateActivityScanInterval(scan.profileId, scan.interval);
+            delay = scan.interval;
+        } catch (RateLimitedException ex) {
+            delay = ex.getRetryAfter();
+        } catch (Exception ex) {
+            log.error(String.format("Activity scan failed for user %s", scan.profileId), ex);
+        } finally {
+            reschedule(scan, System.currentTimeMillis() + delay);
+        }
+    }
+
+    private synchronized void reschedule(Scan scan, long dueAt) {
+        inFlight--;
+
+        if (scans.get(scan.profileId) == scan) {
+            scan.dueAt = dueAt;
+            queue.add(scan);
+        }
+    }
+
+    private long clamp(long interval) {
+        return Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+
+    /**
+     * Adapts the scan interval of a user to the number of new statuses that its last scan found. An interval is
+     * scaled so that the next scan finds about {@link #TARGET_STATUSES} statuses, but it at most halves or doubles
+     * at a time, and it doubles when the user did not tweet at all.
+     *
+     * @param interval is the current interval of the user in milliseconds
+     * @param statuses is the number of statuses that the user posted since its previous scan
+     */
+    static long nextInterval(long interval, int statuses, long minInterval, long maxInterval) {
+        double factor = statuses == 0 ? 2.0 : Math.max(0.5, Math.min(2.0, (double) TARGET_STATUSES / statuses));
+        return Math.max(minInterval, Math.min(maxInterval, Math.round(interval * factor)));
+    }
+
+    /**
+     * A user in the schedule, which is either queued until it is due or being scanned
+     */
+    private static class Scan {
+        private final long profileId;
+        private long interval;
+        private long dueAt;
+
+        Scan(long profileId, long interval) {
+            this.profileId = profileId;
+            this.interval = interval;
+        }
+    }
+}
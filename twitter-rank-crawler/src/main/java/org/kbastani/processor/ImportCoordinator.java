@@ -0,0 +1,74 @@
+package org.kbastani.processor;
+
+import org.kbastani.user.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes sure that a user's followers and friends are imported by only one consumer at a time. Consumers on the
+ * same crawler instance are de-duplicated with an in-memory set of the profile ids that are in flight, and
+ * crawler replicas are coordinated with an expiring lease on the user node in Neo4j. No lock is held while a
+ * user is imported, so a replica that dies only delays its users until the lease expires.
+ *
+ * @author kbastani
+ */
+@Component
+public class ImportCoordinator {
+
+    // Returned by tryAcquire when a consumer of this instance is already importing the user
+    static final long IN_FLIGHT = -1L;
+
+    private final String owner = UUID.randomUUID().toString();
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final UserRepository userRepository;
+    private final long leaseDuration;
+
+    @Autowired
+    public ImportCoordinator(UserRepository userRepository,
+                             @Value("${crawler.import.lease-ms:900000}") long leaseDuration) {
+        this.userRepository = userRepository;
+        this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * Claims a user for import
+     *
+     * @param profileId is the profile id of the user to import
+     * @return zero if the caller may import the user, {@link #IN_FLIGHT} if another consumer of this instance is
+     * already importing it, or the number of milliseconds until the lease of the crawler replica that is importing
+     * it expires
+     */
+    public long tryAcquire(Long profileId) {
+        if (!inFlight.add(profileId)) {
+            return IN_FLIGHT;
+        }
+
+        Long wait = null;
+
+        try {
+            wait = userRepository.acquireImportLease(profileId, owner, leaseDuration);
+        } finally {
+            if (wait == null || wait != 0) {
+                inFlight.remove(profileId);
+            }
+        }
+
+        return wait;
+    }
+
+    /**
+     * Releases a user that was claimed with {@link #tryAcquire(Long)}
+     */
+    public void release(Long profileId) {
+        try {
+            userRepository.releaseImportLease(profileId, owner);
+        } finally {
+            inFlight.remove(profileId);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.kbastani.processor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors of the scheduled jobs, so that each type of job runs on its own threads and a slow job
+ * cannot starve the others. Every executor has a fixed number of threads and a bounded queue, and a task that is
+ * submitted while the queue is full is discarded: a scheduled job submits the same task on every run, so a
+ * discarded task coalesces with the one that is already pending instead of piling up behind a slow call.
+ * <p>
+ * The queue depth, active threads, and task latency of each executor are exported through Micrometer under the
+ * {@code executor} meters with the name of the job as the {@code name} tag, and discarded tasks are counted by
+ * {@code executor.rejected}.
+ *
+ * @author kbastani
+ */
+@Component
+public class JobExecutors implements DisposableBean {
+
+    private final Log log = LogFactory.getLog(JobExecutors.class);
+    private final MeterRegistry meterRegistry;
+    private final List<ExecutorService> executors = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    public JobExecutors(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Creates a monitored executor for a type of job
+     *
+     * @param name          is the name of the job, which names the threads and tags the metrics of the executor
+     * @param threads       is the number of tasks of the job that may run at the same time
+     * @param queueCapacity is the number of tasks that may wait for a thread before new tasks are discarded
+     */
+    public ExecutorService create(String name, int threads, int queueCapacity) {
+        Counter rejected = meterRegistry.counter("executor.rejected", "name", name);
+        AtomicInteger count = new AtomicInteger();
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, pool) -> {
+            rejected.increment();
+            log.debug(String.format("A %s task is already pending, the new task was discarded", name));
+        });
+
+        ExecutorService monitored = ExecutorServiceMetrics.monitor(meterRegistry, executor, name, Tags.empty());
+        executors.add(monitored);
+
+        return monitored;
+    }
+
+    @Override
+    public void destroy() {
+        executors.forEach(ExecutorService::shutdownNow);
+    }
+}
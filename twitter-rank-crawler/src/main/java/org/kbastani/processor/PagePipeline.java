@@ -0,0 +1,84 @@
+package org.kbastani.processor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Overlaps the fetching of cursored id pages from the Twitter API with the writing of those pages to Neo4j.
+ * Pages are handed to a writer thread through a bounded queue, so the next page can be requested while the
+ * previous one is being saved. When the database falls behind, the queue fills up and {@link #write(long[])}
+ * blocks the fetching thread until a page has been written.
+ * <p>
+ * A failure of the writer is rethrown to the fetching thread on its next call, and {@link #close()} waits for
+ * all queued pages to be written, so a message is only acknowledged after its pages are in the database.
+ *
+ * @author kbastani
+ */
+class PagePipeline implements AutoCloseable {
+
+    private static final long[] END = new long[0];
+
+    private final BlockingQueue<long[]> pages;
+    private final Consumer<long[]> writer;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile RuntimeException failure;
+
+    PagePipeline(Executor executor, int depth, Consumer<long[]> writer) {
+        this.pages = new ArrayBlockingQueue<>(depth);
+        this.writer = writer;
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Queues a page of ids to be written, blocking while the queue is full.
+     */
+    void write(long[] ids) throws InterruptedException {
+        while (!pages.offer(ids, 100, TimeUnit.MILLISECONDS)) {
+            rethrow();
+        }
+        rethrow();
+    }
+
+    /**
+     * Waits until every queued page has been written. An interrupt while waiting is restored on the thread and
+     * fails the import, since the queued pages may not have been written.
+     */
+    @Override
+    public void close() {
+        try {
+            while (failure == null && !pages.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                // Wait for the writer to make room for the end marker
+            }
+            finished.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for pages to be written", ex);
+        }
+        rethrow();
+    }
+
+    private void drain() {
+        try {
+            for (long[] ids = pages.take(); ids != END; ids = pages.take()) {
+                writer.accept(ids);
+            }
+        } catch (InterruptedException ex) {
+            failure = new IllegalStateException("Interrupted while writing pages", ex);
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            failure = ex;
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void rethrow() {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
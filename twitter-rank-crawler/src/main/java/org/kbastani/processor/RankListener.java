@@ -3,57 +3,76 @@ package org.kbastani.processor;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.kbastani.config.TwitterCrawlerConfig;
 import org.kbastani.tweet.TwitterService;
-import org.kbastani.user.Follows;
-import org.kbastani.user.FollowsRepository;
+import org.kbastani.twitter.RateLimitedException;
+import org.kbastani.twitter.TwitterClient;
+import org.kbastani.user.FollowsWriter;
 import org.kbastani.user.User;
 import org.kbastani.user.UserRepository;
-import org.springframework.amqp.AmqpIllegalStateException;
 import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Service;
 import twitter4j.IDs;
-import twitter4j.Twitter;
-import twitter4j.TwitterException;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
- * This class is the crawler that receives messages from three different queues and performs
- * work serially to import the graph of users received from the Twitter API. If the rate limit
- * of the Twitter API is succeeded, the message will be re-inserted back into the queue and
- * the operation will retry once the rate limit has been reset.
+ * This class is the crawler that receives messages from three different queues and imports
+ * the graph of users received from the Twitter API. Messages may be consumed concurrently, by
+ * many threads and by many crawler replicas, and the {@link ImportCoordinator} makes sure that
+ * each user is only imported by one consumer at a time. If the rate limit of the Twitter API
+ * has been reached, the message is parked in a wait queue until the rate limit window resets,
+ * and the import resumes from the cursor where it stopped. A message for a user that another
+ * replica holds the import lease of is parked until the lease expires, so that it is not lost
+ * when that replica dies during the import.
  *
  * @author kbastani
  */
 @Service
 public class RankListener {
 
+    static final String FOLLOWERS_QUEUE = "twitter.followers";
+    static final String FOLLOWS_QUEUE = "twitter.follows";
+    static final String CURSOR_HEADER = "cursor";
+
     private final Log log = LogFactory.getLog(RankListener.class);
     private final ObjectMapper objectMapper;
     private final AmqpTemplate amqpTemplate;
-    private final Twitter twitter;
-    private final FollowsRepository followsRepository;
+    private final TwitterClient twitterClient;
+    private final FollowsWriter followsWriter;
     private final TwitterService twitterService;
     private final UserRepository userRepository;
+    private final ImportCoordinator importCoordinator;
+    private final int pipelineDepth;
+    private final long retryDelay;
+    private final ExecutorService pageWriters = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "follows-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Autowired
-    public RankListener(ObjectMapper objectMapper, AmqpTemplate amqpTemplate, Twitter twitter,
-                        FollowsRepository followsRepository, TwitterService twitterService,
-                        UserRepository userRepository) {
+    public RankListener(ObjectMapper objectMapper, AmqpTemplate amqpTemplate, TwitterClient twitterClient,
+                        FollowsWriter followsWriter, TwitterService twitterService,
+                        UserRepository userRepository, ImportCoordinator importCoordinator,
+                        @Value("${crawler.follows.pipeline-depth:4}") int pipelineDepth,
+                        @Value("${crawler.retry-delay-ms:40000}") long retryDelay) {
         this.objectMapper = objectMapper;
         this.amqpTemplate = amqpTemplate;
-        this.twitter = twitter;
-        this.followsRepository = followsRepository;
+        this.twitterClient = twitterClient;
+        this.followsWriter = followsWriter;
         this.twitterService = twitterService;
         this.userRepository = userRepository;
+        this.importCoordinator = importCoordinator;
+        this.pipelineDepth = pipelineDepth;
+        this.retryDelay = retryDelay;
     }
 
     /**
@@ -61,83 +80,64 @@ public class RankListener {
      * On successful completion, a message is sent to the next queue to import the users that this profile
      * follows.
      *
-     * @param message is the message containing information about the user profile
+     * @param message     is the message containing information about the user profile
+     * @param startCursor is the cursor to resume from when the message was deferred part way through an import
      */
-    @RabbitListener(queues = {"twitter.followers"})
-    public void followers(String message) throws InterruptedException, IOException {
+    @RabbitListener(queues = {FOLLOWERS_QUEUE})
+    public void followers(String message, @Header(name = CURSOR_HEADER, required = false) Long startCursor)
+            throws IOException {
 
         User user = objectMapper.readValue(message, User.class);
+        long leased = importCoordinator.tryAcquire(user.getProfileId());
+
+        if (leased == ImportCoordinator.IN_FLIGHT) {
+            log.info(String.format("Skipping duplicate follower network message for %s...", user.getScreenName()));
+            return;
+        } else if (leased > 0) {
+            log.info(String.format("Followers of %s are being imported by another crawler...", user.getScreenName()));
+            defer(FOLLOWERS_QUEUE, message, startCursor, leased);
+            return;
+        }
 
         log.info(String.format("Import follower network message received for %s...", user.getScreenName()));
-        try {
-            // Iterate through cursors and import to graph database
-            IDs followers = twitter.getFollowersIDs(user.getProfileId(), -1L);
+        long cursor = startCursor == null ? -1L : startCursor;
 
-            saveFollowers(user, followers);
-
-            while (followers.hasNext()) {
-                long cursor = followers.getNextCursor();
-                followers = twitter.getFollowersIDs(user.getProfileId(), cursor);
-                saveFollowers(user, followers);
+        try {
+            // Iterate through cursors and import to graph database, while the previous pages are written
+            try (PagePipeline pipeline = new PagePipeline(pageWriters, pipelineDepth,
+                    ids -> followsWriter.saveFollowers(user.getProfileId(), ids))) {
+                IDs followers;
+                do {
+                    followers = twitterClient.getFollowersIDs(user.getProfileId(), cursor);
+                    pipeline.write(followers.getIDs());
+                    cursor = followers.getNextCursor();
+                } while (followers.hasNext());
+            } finally {
+                importCoordinator.release(user.getProfileId());
             }
 
             log.info(String.format("%s followers imported for user: %s", user.getFollowerCount(),
                     user.getScreenName()));
 
-            amqpTemplate.convertAndSend("twitter.follows", objectMapper.writeValueAsString(user));
-        } catch (Exception rateLimitException) {
-            RankProcessor.resetTimer = true;
-            Thread.sleep(40000L);
-            log.info(String.format("Rate limit exceeded while importing followers for user: %s",
+            amqpTemplate.convertAndSend(FOLLOWS_QUEUE, objectMapper.writeValueAsString(user));
+        } catch (RateLimitedException ex) {
+            log.info(String.format("Rate limit reached while importing followers for user: %s",
                     user.getScreenName()));
-
-            // Throw AMQP exception and redeliver the message
-            throw new AmqpIllegalStateException(rateLimitException.getMessage());
-        }
-    }
-
-    /**
-     * Saves a cursored list of followers from the Twitter API in batches to Neo4j
-     *
-     * @param user      is the {@link User} that is the owner of the relationships being imported
-     * @param followers are the profiles that the @{link User} is being followed by
-     */
-    private void saveFollowers(User user, IDs followers) {
-        final User finalUser = user;
-
-        List<User> users = LongStream.of(followers.getIDs()).mapToObj(a -> new User(a,
-                new ArrayList<User>(Collections.singletonList(new User(finalUser.getId(), finalUser.getProfileId()))),
-                null))
-                .collect(Collectors.toList());
-
-        Integer pointer = 0;
-        Integer batchSize = 400;
-        Integer retryCount = 0;
-
-        while ((batchSize * pointer) < users.size()) {
-            try {
-                followsRepository.saveFollows(users.subList((batchSize * pointer),
-                        Math.min(((batchSize * pointer) + batchSize), users.size())).stream()
-                        .map(follower -> new Follows(follower, user)).collect(Collectors.toSet()));
-                pointer++;
-            } catch (Exception ex) {
-                if (retryCount <= 4) {
-                    // retry
-                    retryCount++;
-                } else {
-                    throw ex;
-                }
-            }
+            defer(FOLLOWERS_QUEUE, message, resumeCursor(ex, cursor, startCursor), ex.getRetryAfter());
+        } catch (Exception ex) {
+            log.info(String.format("Error importing followers for user: %s", user.getScreenName()), ex);
+            defer(FOLLOWERS_QUEUE, message, startCursor, retryDelay);
         }
     }
 
     /**
      * Receives a message containing a user profile that should have the users they follow imported into Neo4j
      *
-     * @param message is the message containing information about the user profile
+     * @param message     is the message containing information about the user profile
+     * @param startCursor is the cursor to resume from when the message was deferred part way through an import
      */
-    @RabbitListener(queues = {"twitter.follows"})
-    public void follows(String message) throws InterruptedException {
+    @RabbitListener(queues = {FOLLOWS_QUEUE})
+    public void follows(String message, @Header(name = CURSOR_HEADER, required = false) Long startCursor) {
         User user = null;
 
         try {
@@ -146,18 +146,36 @@ public class RankListener {
             e.printStackTrace();
         }
 
-        try {
-            // Iterate through cursors and import to graph database
-            if (user != null) {
+        if (user == null) {
+            return;
+        }
 
-                IDs follows = twitter.getFriendsIDs(user.getProfileId(), -1);
+        final Long profileId = user.getProfileId();
 
-                saveFollows(user, follows);
+        long leased = importCoordinator.tryAcquire(profileId);
 
-                while (follows.hasNext()) {
-                    long cursor = follows.getNextCursor();
-                    follows = twitter.getFriendsIDs(user.getProfileId(), cursor);
-                    saveFollows(user, follows);
+        if (leased == ImportCoordinator.IN_FLIGHT) {
+            log.info(String.format("Skipping duplicate friends message for %s...", user.getScreenName()));
+            return;
+        } else if (leased > 0) {
+            log.info(String.format("Friends of %s are being imported by another crawler...", user.getScreenName()));
+            defer(FOLLOWS_QUEUE, message, startCursor, leased);
+            return;
+        }
+
+        long cursor = startCursor == null ? -1L : startCursor;
+
+        try {
+            // Iterate through cursors and import to graph database
+            try {
+                try (PagePipeline pipeline = new PagePipeline(pageWriters, pipelineDepth,
+                        ids -> followsWriter.saveFriends(profileId, ids))) {
+                    IDs follows;
+                    do {
+                        follows = twitterClient.getFriendsIDs(profileId, cursor);
+                        pipeline.write(follows.getIDs());
+                        cursor = follows.getNextCursor();
+                    } while (follows.hasNext());
                 }
 
                 log.info(String.format("%s friends imported for user: %s", user.getFollowsCount(),
@@ -165,34 +183,51 @@ public class RankListener {
 
                 // Prepares the user to be ranked on the leader board
                 prepareUserForRanking(user);
-
-                // Reset the timer
-                RankProcessor.resetTimer = true;
-
-                // Queue next user
-                User nextUser = userRepository.findRankedUserToCrawl();
-
-                if (nextUser == null) {
-                    nextUser = userRepository.findNextUserToCrawl();
-                }
-
-                if (nextUser != null) {
-                    twitterService.discoverUserByProfileId(nextUser.getProfileId());
-                }
+            } finally {
+                importCoordinator.release(profileId);
             }
-        } catch (TwitterException rateLimitException) {
-            RankProcessor.resetTimer = true;
-            Thread.sleep(40000L);
-
-            log.info(String.format("Rate limit exceeded while importing friends for user: %s", user.getScreenName()));
+        } catch (RateLimitedException ex) {
+            log.info(String.format("Rate limit reached while importing friends for user: %s", user.getScreenName()));
+            defer(FOLLOWS_QUEUE, message, resumeCursor(ex, cursor, startCursor), ex.getRetryAfter());
+            return;
+        } catch (Exception ex) {
+            log.info(String.format("Error importing friends for user: %s", user.getScreenName()), ex);
+            defer(FOLLOWS_QUEUE, message, startCursor, retryDelay);
+            return;
+        }
 
-            // Throw AMQP exception and redeliver the message
-            throw new AmqpIllegalStateException(rateLimitException.getMessage());
+        try {
+            // Queue next user
+            twitterService.discoverNextUser();
         } catch (Exception ex) {
-            log.info(ex);
+            log.info(String.format("Next user was not discovered: %s", ex.getMessage()));
         }
     }
 
+    /**
+     * Parks a message in a wait queue of its work queue, from where it is dead lettered back to the work queue
+     * once the delay class of the wait queue has passed. This frees the listener thread instead of sleeping on it,
+     * and a rate limited import resumes from the cursor that it stopped at.
+     */
+    private void defer(String queue, String message, Long cursor, long delay) {
+        String waitQueue = TwitterCrawlerConfig.waitQueueName(queue, delay);
+        log.info(String.format("Retrying %s message in %s seconds from %s", queue, delay / 1000, waitQueue));
+        amqpTemplate.convertAndSend(waitQueue, message, m -> {
+            if (cursor != null) {
+                m.getMessageProperties().setHeader(CURSOR_HEADER, cursor);
+            }
+            return m;
+        });
+    }
+
+    /**
+     * Pages that were fetched before a rate limit was reached have been written, unless the writer also failed,
+     * in which case the import restarts from where the message started.
+     */
+    private static Long resumeCursor(RateLimitedException ex, long cursor, Long startCursor) {
+        return ex.getSuppressed().length == 0 ? Long.valueOf(cursor) : startCursor;
+    }
+
     /**
      * Prepares a user to be ranked for the first time after having follower
      * data imported, resetting the previous PageRanks and preparing for a new
@@ -214,39 +249,4 @@ public class RankListener {
         }
     }
 
-    /**
-     * Saves a cursored list of followers from the Twitter API in batches to Neo4j
-     *
-     * @param user    is the {@link User} that is the owner of the relationships being imported
-     * @param follows are the profiles that the @{link User} follows
-     */
-    private void saveFollows(User user, IDs follows) {
-        final User finalUser = user;
-
-        List<User> users = LongStream.of(follows.getIDs()).mapToObj(a -> new User(a,
-                null, new ArrayList<User>(Collections.singletonList(new User(finalUser.getId(),
-                finalUser.getProfileId())))))
-                .collect(Collectors.toList());
-
-        Integer pointer = 0;
-        Integer batchSize = 400;
-        int retryCount = 0;
-
-        while ((batchSize * pointer) < users.size()) {
-            try {
-                followsRepository.saveFollows(users.subList((batchSize * pointer),
-                        Math.min(((batchSize * pointer) + batchSize), users.size())).stream()
-                        .map(follower -> new Follows(user, follower)).collect(Collectors.toSet()));
-                pointer++;
-            } catch (Exception ex) {
-                if (retryCount <= 3) {
-                    // retry
-                    retryCount++;
-                } else {
-                    throw ex;
-                }
-            }
-        }
-    }
-
 }
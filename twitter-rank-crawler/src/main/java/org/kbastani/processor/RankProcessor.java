@@ -1,34 +1,37 @@
 package org.kbastani.processor;
 
-import com.google.cloud.language.v1.ClassificationCategory;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.kbastani.nlp.TextAnalysis;
-import org.kbastani.text.TextEntity;
+import org.kbastani.graph.GraphPageRankService;
+import org.kbastani.text.TextEntityClassifier;
 import org.kbastani.text.TextEntityRepository;
-import org.kbastani.tweet.Tweet;
-import org.kbastani.tweet.TweetRepository;
 import org.kbastani.tweet.TwitterService;
-import org.kbastani.user.User;
+import org.kbastani.twitter.Endpoint;
+import org.kbastani.twitter.TwitterClient;
+import org.kbastani.user.CrawlFrontier;
+import org.kbastani.user.RankPositions;
+import org.kbastani.user.SentimentRecompute;
 import org.kbastani.user.UserRepository;
+import org.kbastani.web.LeaderboardCache;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.text.SimpleDateFormat;
-import java.time.Duration;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
 
 /**
  * This class is the scheduler that makes sure that jobs are scheduled on a fixed
  * interval. The first of the two jobs is discovery of new users based on
  * the most relevant next user to import determined by PageRank. The second
- * job is to schedule a PageRank analysis of all data every five minutes.
+ * job is to keep the PageRank of the follower graph current, by propagating new
+ * relationships incrementally and by running a full analysis on a slower cadence.
  *
  * @author kbastani
  */
@@ -36,34 +39,154 @@ import java.util.stream.Collectors;
 public class RankProcessor {
 
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
-    private final ExecutorService executorService = Executors.newFixedThreadPool(25);
     private final Log logger = LogFactory.getLog(RankProcessor.class);
     private final TwitterService twitterService;
     private final UserRepository userRepository;
     private final TextEntityRepository textEntityRepository;
-    private final TweetRepository tweetRepository;
-
-    public static Boolean resetTimer = false;
+    private final TextEntityClassifier textEntityClassifier;
+    private final GraphPageRankService graphPageRankService;
+    private final TwitterClient twitterClient;
+    private final AmqpAdmin amqpAdmin;
+    private final CrawlFrontier crawlFrontier;
+    private final RankPositions rankPositions;
+    private final LeaderboardCache leaderboardCache;
+    private final SentimentRecompute sentimentRecompute;
+    private final ActivityScanScheduler activityScanScheduler;
+    private final ExecutorService discoveryExecutor;
+    private final ExecutorService classificationExecutor;
+    private final ExecutorService followsPageRankExecutor;
+    private final ExecutorService incrementalPageRankExecutor;
+    private final ExecutorService entityPageRankExecutor;
+    // The full and the incremental FOLLOWS jobs write the same scores, so they take turns
+    private final Object followsPageRankLock = new Object();
+    private final int discoveryBatchSize;
 
     @Value("${neo4j.mazerunner.host:graphdb:7474}")
     private String mazerunnerHost;
 
+    @Value("${pagerank.in-process:true}")
+    private boolean inProcessPageRank;
+
+    @Value("${pagerank.follows.epsilon:0.001}")
+    private Double followsEpsilon;
+
+    @Value("${pagerank.follows.incremental-batch-size:10000}")
+    private int incrementalBatchSize;
+
+    @Value("${pagerank.follows.max-incremental-batches:100}")
+    private int maxIncrementalBatches;
+
 
     public RankProcessor(TwitterService twitterService, UserRepository userRepository,
-                         TextEntityRepository textEntityRepository, TweetRepository tweetRepository) {
+                         TextEntityRepository textEntityRepository, TextEntityClassifier textEntityClassifier,
+                         GraphPageRankService graphPageRankService,
+                         TwitterClient twitterClient, AmqpAdmin amqpAdmin, CrawlFrontier crawlFrontier,
+                         RankPositions rankPositions, LeaderboardCache leaderboardCache,
+                         SentimentRecompute sentimentRecompute, ActivityScanScheduler activityScanScheduler,
+                         JobExecutors jobExecutors,
+                         @Value("${crawler.classification.workers:1}") int classificationWorkers,
+                         @Value("${crawler.discovery.batch-size:100}") int discoveryBatchSize) {
         this.twitterService = twitterService;
         this.userRepository = userRepository;
         this.textEntityRepository = textEntityRepository;
-        this.tweetRepository = tweetRepository;
+        this.textEntityClassifier = textEntityClassifier;
+        this.graphPageRankService = graphPageRankService;
+        this.twitterClient = twitterClient;
+        this.amqpAdmin = amqpAdmin;
+        this.crawlFrontier = crawlFrontier;
+        this.rankPositions = rankPositions;
+        this.leaderboardCache = leaderboardCache;
+        this.sentimentRecompute = sentimentRecompute;
+        this.activityScanScheduler = activityScanScheduler;
+        // At most one discovery and one classification wait behind the running ones, and the tasks of later runs
+        // are discarded until they start
+        this.discoveryExecutor = jobExecutors.create("discovery", 1, 1);
+        this.followsPageRankExecutor = jobExecutors.create("pagerank-follows", 1, 1);
+        this.incrementalPageRankExecutor = jobExecutors.create("pagerank-follows-incremental", 1, 1);
+        this.entityPageRankExecutor = jobExecutors.create("pagerank-entities", 1, 1);
+        this.classificationExecutor = jobExecutors.create("classification", classificationWorkers, 1);
+        this.discoveryBatchSize = discoveryBatchSize;
     }
 
     /**
-     * Every five minutes a PageRank job is scheduled on the follower graph
+     * The crawl frontier is rebuilt from the undiscovered users in Neo4j when the crawler starts, the leader
+     * board is materialized from the ranks of the last run, and the activity scans of the ranked users are
+     * scheduled
      */
-    @Scheduled(fixedRate = 100000, initialDelay = 20000)
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildOnStartup() {
+        crawlFrontier.rebuild();
+        leaderboardCache.refresh();
+        activityScanScheduler.refresh();
+    }
+
+    /**
+     * A full PageRank job is scheduled on the follower graph every 30 minutes by default, which corrects any
+     * drift left behind by the incremental updates. The positions of the ranked users and the leader board are
+     * updated once the job has finished.
+     */
+    @Scheduled(fixedRateString = "${pagerank.follows.full-rate:1800000}", initialDelay = 20000)
     public void scheduleFollowerPageRank() {
-        logger.info(String.format("FOLLOWS PageRank scheduled on user graph %s", dateFormat.format(new Date())));
-        userRepository.updatePageRankForFollowGraph();
+        followsPageRankExecutor.execute(this::followerPageRank);
+    }
+
+    private void followerPageRank() {
+        synchronized (followsPageRankLock) {
+            logger.info(String.format("FOLLOWS PageRank scheduled on user graph %s", dateFormat.format(new Date())));
+            Long startTime = userRepository.getDatabaseTime();
+            if (inProcessPageRank) {
+                graphPageRankService.updatePageRankForFollowGraph();
+            } else {
+                userRepository.updatePageRankForFollowGraph();
+                crawlFrontier.rebuild();
+            }
+            // Changes made before the full job started are already reflected in its scores
+            userRepository.clearPageRankChanges(startTime);
+            updateRanks();
+        }
+    }
+
+    /**
+     * Propagates the FOLLOWS relationships that were added since the last run through the PageRank scores of the
+     * users they reach. Each batch visits up to {@code pagerank.follows.incremental-batch-size} of the users whose
+     * followers changed by more than the epsilon, so the cost of an update is proportional to the part of the graph
+     * that it affects and no single transaction grows with it. Changes that have not converged within the maximum
+     * number of batches stay marked and are resumed by the next run. The positions of the ranked users and the
+     * leader board are only updated when the run changed a score.
+     */
+    @Scheduled(fixedRateString = "${pagerank.follows.incremental-rate:100000}", initialDelay = 60000)
+    public void scheduleIncrementalFollowerPageRank() {
+        incrementalPageRankExecutor.execute(this::incrementalFollowerPageRank);
+    }
+
+    private void incrementalFollowerPageRank() {
+        synchronized (followsPageRankLock) {
+            int batches = 0;
+            long propagated = 0;
+            Long sources;
+
+            do {
+                sources = userRepository.updateIncrementalPageRankForFollowGraph(followsEpsilon,
+                        incrementalBatchSize);
+                propagated += sources == null ? 0 : sources;
+                batches++;
+            } while (sources != null && sources > 0 && batches < maxIncrementalBatches);
+
+            logger.info(String.format("Incremental FOLLOWS PageRank propagated %s changed users in %s batches %s",
+                    propagated, batches, dateFormat.format(new Date())));
+
+            if (propagated > 0) {
+                updateRanks();
+            }
+        }
+    }
+
+    /**
+     * Updates the positions of the ranked users and refreshes the materialized leader board from them
+     */
+    private void updateRanks() {
+        rankPositions.update();
+        leaderboardCache.refresh();
     }
 
     /**
@@ -71,59 +194,84 @@ public class RankProcessor {
      */
     @Scheduled(fixedRate = 90000, initialDelay = 20000)
     public void scheduleEntityPageRank() {
+        entityPageRankExecutor.execute(this::entityPageRank);
+    }
+
+    private void entityPageRank() {
         logger.info(String.format("HAS_ENTITY PageRank scheduled on semantic graph %s", dateFormat.format(new Date())));
-        textEntityRepository.updatePageRankForEntityGraph();
+        if (inProcessPageRank) {
+            graphPageRankService.updatePageRankForEntityGraph();
+        } else {
+            textEntityRepository.updatePageRankForEntityGraph();
+        }
     }
 
     /**
-     * Every minute, an attempt to discover a new user to be imported is attempted. This only succeeds if
-     * the API is not restricted by a temporary rate limit. This makes sure that only relevant users are
-     * discovered over time, to keep the API crawling relevant.
+     * Every minute, a batch of new users to be imported is discovered. The size of the batch is the number of
+     * follower imports that the remaining followers/ids rate limit can still serve, less the imports that are
+     * already queued, so that only relevant users are discovered over time and the queue does not outgrow the
+     * API's capacity.
      */
     @Scheduled(fixedRate = 60000)
     public void scheduleDiscoverUser() {
+        discoveryExecutor.execute(this::discoverUsers);
+    }
 
-        executorService.execute(() -> {
-            if (!resetTimer) {
-                // Use ranked users when possible
-                User user = userRepository.findRankedUserToCrawl();
-
-                if (user == null) {
-                    user = userRepository.findNextUserToCrawl();
-                }
+    /**
+     * Discovers a batch of users, unless the crawler queued a user after an import within the last minute, or the
+     * endpoints that a new user needs are rate limited. The batches of earlier runs do not delay this one.
+     */
+    void discoverUsers() {
+        if (System.currentTimeMillis() - twitterService.getLastDiscoveryTime() >= 60000 &&
+                twitterClient.delay(Endpoint.USERS_LOOKUP) == 0 &&
+                twitterClient.delay(Endpoint.FOLLOWERS_IDS) == 0) {
+            int limit = Math.min(discoveryBatchSize,
+                    twitterClient.remaining(Endpoint.FOLLOWERS_IDS) - queuedImports());
+            try {
+                twitterService.discoverUsers(limit);
+            } catch (RuntimeException ex) {
+                logger.info(String.format("User discovery failed: %s", ex.getMessage()));
+            }
+        }
+    }
 
-                if (user != null) {
-                    twitterService.discoverUserByProfileId(user.getProfileId());
-                }
-            } else resetTimer = false;
-            // Update rankings
-            logger.info("Updating last ranks...");
-            userRepository.setLastPageRank();
-            logger.info("Updating current rank...");
-            userRepository.updateUserCurrentRank();
-            logger.info("Current ranks updated!");
-        });
+    private int queuedImports() {
+        Properties queue = amqpAdmin.getQueueProperties("twitter.followers");
+        return queue == null ? 0 : ((Number) queue.getOrDefault(RabbitAdmin.QUEUE_MESSAGE_COUNT, 0)).intValue();
+    }
 
+    /**
+     * Every hour the discovery chain is repaired, which links any users that were discovered but not appended
+     */
+    @Scheduled(fixedRateString = "${crawler.discovery.chain-repair-rate:3600000}", initialDelay = 30000)
+    public void scheduleDiscoveryChainRepair() {
+        twitterService.repairDiscoveryChain();
+    }
 
+    /**
+     * Every minute an unfinished sentiment recompute is resumed from its last completed chunk, so that a recompute
+     * that was started from the API or interrupted by a restart runs to completion
+     */
+    @Scheduled(fixedDelayString = "${sentiment.recompute.resume-delay:60000}", initialDelay = 30000)
+    public void scheduleSentimentRecompute() {
+        sentimentRecompute.resume();
     }
 
-    @Scheduled(fixedRate = 20000, initialDelay = 20000)
+    /**
+     * Every second the activity scans of the users that are due are started, up to the number of scan workers
+     */
+    @Scheduled(fixedDelayString = "${crawler.activity-scan.dispatch-delay:1000}", initialDelay = 20000)
     public void scheduleUserActivityScan() {
-        logger.info("Importing user activity for sentiment analysis...");
-        // Get a user that is ready for an activity scan
-        User user = userRepository.findNextUserActivityScan();
-
-        // Wait 60 seconds in-between reads
-        if (user.getLastActivityScan() == null ||
-                Duration.ofMillis(new Date().getTime() -
-                        new Date(user.getLastActivityScan()).getTime()).getSeconds() > 60) {
-            user.setLastActivityScan(new Date().getTime());
-            userRepository.save(user);
-            // Only scan a user's activity feed every 60 seconds at the most
-            executorService.submit(() -> twitterService.scanUserActivity(user));
-        } else {
-            logger.info("No users are available for activity scan at this time...");
-        }
+        activityScanScheduler.dispatch();
+    }
+
+    /**
+     * Every 10 minutes the users that were ranked since the last refresh are added to the activity scan schedule
+     */
+    @Scheduled(fixedRateString = "${crawler.activity-scan.refresh-rate:600000}",
+            initialDelayString = "${crawler.activity-scan.refresh-rate:600000}")
+    public void scheduleActivityScanRefresh() {
+        activityScanScheduler.refresh();
     }
 
     @Scheduled(fixedRate = 5000)
@@ -140,50 +288,16 @@ public class RankProcessor {
 
         logger.info("Finding uncategorized text entity for analysis...");
 
-        executorService.execute(this::entityClassification);
+        classificationExecutor.execute(this::entityClassification);
     }
 
     private void entityClassification() {
-        // Query the next top ranked semantic entity that has yet to be classified and submit all tweet text
-        // to the classification API
-        TextEntity entity = textEntityRepository.findUncategorizedTextEntity(new Date().getTime());
-
-        if (entity != null) {
-            logger.info(String.format("Classifying text entity with name: %s...", entity.getName()));
-
-            List<Tweet> tweets = tweetRepository.findTweetsForTextEntity(entity.getName());
-
-            List<ClassificationCategory> classificationCategories = new ArrayList<>();
-
-            if (tweets.size() >= 3) {
-                try {
-                    // Compose a single string of text from multiple tweets and send it to the NLP classifier
-                    classificationCategories =
-                            TextAnalysis.classifyText(tweets.stream().map(Tweet::getText)
-                                    .collect(Collectors.joining("\n")));
-                } catch (Exception ex) {
-                    logger.info(String.format("Error classifying tweets: %s", ex.getMessage()));
-                }
-            }
-
-            // Create new Category labeled nodes and connect any retrieved topics from the NLP API
-            // under the relationship: (:TextEntity)-[:HAS_CATEGORY]->(:Category)
-            if (classificationCategories.size() > 0) {
-
-                logger.info(String.format("Text entity categories found for %s: %s", entity.getName(),
-                        classificationCategories.stream().map(c -> c.getName()
-                                .toLowerCase()).collect(Collectors.joining(", "))));
+        // Claim the next top ranked semantic entities that have yet to be classified and submit the tweet text
+        // of each entity to the classification API
+        int classified = textEntityClassifier.classifyNext();
 
-                // Attach the categories to the entity
-                textEntityRepository.saveTextEntityCategories(entity.getName(),
-                        classificationCategories.stream().map(c -> c.getName().toLowerCase())
-                                .collect(Collectors.toList()));
-            } else {
-                logger.info(String.format("No categories for text entity with name: %s...", entity.getName()));
-
-                // Marks the text entity as processed so that the next scheduled job will skip it
-                textEntityRepository.saveTextEntityCategories(entity.getName(), new ArrayList<>());
-            }
+        if (classified == 0) {
+            logger.info("No uncategorized text entities are due for classification...");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package org.kbastani.text;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+import java.util.List;
+
+/**
+ * The text of the tweets that mention a text entity, which are classified together as a single document
+ */
+@QueryResult
+public class EntityTweets {
+    private String name;
+    private List<String> texts;
+
+    public EntityTweets() {
+    }
+
+    public EntityTweets(String name, List<String> texts) {
+        this.name = name;
+        this.texts = texts;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<String> getTexts() {
+        return texts;
+    }
+
+    public void setTexts(List<String> texts) {
+        this.texts = texts;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityTweets{" +
+                "name='" + name + '\'' +
+                ", texts=" + texts +
+                '}';
+    }
+}
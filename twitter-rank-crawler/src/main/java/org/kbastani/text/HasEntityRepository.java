@@ -4,6 +4,7 @@ import org.springframework.data.neo4j.annotation.Query;
 import org.springframework.data.neo4j.repository.Neo4jRepository;
 import org.springframework.data.repository.query.Param;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -14,12 +15,35 @@ import java.util.Set;
 public interface HasEntityRepository extends Neo4jRepository<HasEntity, Long> {
 
     /**
-     * Efficiently batches the creation of many HAS_ENTITY relationships
+     * Efficiently batches the creation of many HAS_ENTITY relationships, and labels the entities that are ranked
+     * as {@code :RankableEntity}. The number of distinct tweets that mention an entity is kept as its
+     * {@code tweetCount}, which is only incremented when a tweet is connected to the entity for the first time, and
+     * a rankable entity is {@code eligible} for classification once {@link RankableEntities#MIN_TWEETS} tweets
+     * mention it.
+     * <p>
+     * Relationships that already exist, such as those of a tweet that is fetched again by a later activity scan or
+     * by a retry, are matched rather than created. The relationships that were created are flagged while they are
+     * merged, and their sentiments are returned, so that the sentiment statistics of a user only count each
+     * relationship once.
      *
      * @param hasEntities a set of relationship entities containing a tweet that has an entity
+     * @return the sentiments of the relationships that were created
      */
     @Query("FOREACH(x in {hasEntity} | MERGE (a:Tweet { profileId: x.tweet.profileId, tweetId: x.tweet.tweetId })\n" +
             "MERGE (b:TextEntity { name: x.textEntity.name })\n" +
-            "MERGE (a)-[r:HAS_ENTITY { salience: x.salience, sentiment: x.sentiment, magnitude: x.magnitude }]->(b))")
-    void saveHasEntityRelationships(@Param("hasEntity") Set<HasEntity> hasEntities);
+            "ON CREATE SET b.tweetCount = 0, b.eligible = false, b.lastCategorizedAt = 0\n" +
+            "FOREACH (ignored IN CASE WHEN x.textEntity.rankable THEN [1] ELSE [] END | SET b:RankableEntity)\n" +
+            "FOREACH (ignored IN CASE WHEN (a)-[:HAS_ENTITY]->(b) THEN [] ELSE [1] END |\n" +
+            "   SET b.tweetCount = coalesce(b.tweetCount, 0) + 1\n" +
+            "   SET b.eligible = b:RankableEntity AND b.tweetCount >= " + RankableEntities.MIN_TWEETS + ")\n" +
+            "MERGE (a)-[r:HAS_ENTITY { salience: x.salience, sentiment: x.sentiment, magnitude: x.magnitude }]->(b)\n" +
+            "ON CREATE SET r.created = true)\n" +
+            "WITH {hasEntity} as hasEntities\n" +
+            "UNWIND hasEntities as x\n" +
+            "MATCH (:TextEntity { name: x.textEntity.name })<-[r:HAS_ENTITY]-(a:Tweet)\n" +
+            "WHERE a.tweetId = x.tweet.tweetId AND r.created\n" +
+            "WITH DISTINCT r\n" +
+            "REMOVE r.created\n" +
+            "RETURN r.sentiment as sentiment")
+    List<Double> saveHasEntityRelationships(@Param("hasEntity") Set<HasEntity> hasEntities);
 }
\ No newline at end of file
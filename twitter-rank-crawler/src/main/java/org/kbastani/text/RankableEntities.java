@@ -0,0 +1,76 @@
+package org.kbastani.text;
+
+/**
+ * Decides which text entities are ranked and classified. Entity names that look like links, mentions, hashtags,
+ * retweet markers, numbers, or single characters are noise, and are left out of the entity PageRank and the
+ * category classification. Eligibility is decided once when an entity is imported, and an eligible entity is
+ * labeled {@code :RankableEntity}, so the entity queries find the eligible entities with a label scan.
+ *
+ * @author kbastani
+ */
+public final class RankableEntities {
+
+    /**
+     * The names that are not ranked, as a regular expression that matches the whole name. The entity queries used
+     * to filter with this expression, and it is still used to label the entities that were imported before.
+     */
+    public static final String EXCLUDED_NAMES = "(?ism)(http.*|RT.*|@.*|\\d*|#.*|.*http.*|.*@.*|\\w|\\W.*)";
+
+    /**
+     * The number of distinct tweets that must mention a rankable entity before it is eligible for classification,
+     * since the classifier needs enough text to find a category. The entity queries compare the tweet counts with
+     * this number, and the classifier skips an entity that it finds fewer tweets for.
+     */
+    public static final int MIN_TWEETS = 4;
+
+    private RankableEntities() {
+    }
+
+    /**
+     * Decides without allocating whether an entity name is ranked, which is when {@link #EXCLUDED_NAMES} does not
+     * match it. A name is excluded if it is empty, a single word character, only digits, contains "http" or "@",
+     * starts with "rt", or starts with a character other than an ASCII letter, digit, or underscore, which
+     * includes "@" and "#". Letters are compared without case in ASCII only, like the expression.
+     *
+     * @param name is the name of the entity
+     * @return true if the entity is ranked
+     */
+    public static boolean isRankable(CharSequence name) {
+        if (name == null) {
+            return false;
+        }
+
+        int length = name.length();
+
+        if (length < 2 || !isWordCharacter(name.charAt(0))) {
+            return false;
+        }
+
+        if (lower(name.charAt(0)) == 'r' && lower(name.charAt(1)) == 't') {
+            return false;
+        }
+
+        boolean digits = true;
+
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+
+            if (c == '@' || (lower(c) == 'h' && i + 3 < length && lower(name.charAt(i + 1)) == 't' &&
+                    lower(name.charAt(i + 2)) == 't' && lower(name.charAt(i + 3)) == 'p')) {
+                return false;
+            }
+
+            digits &= c >= '0' && c <= '9';
+        }
+
+        return !digits;
+    }
+
+    private static boolean isWordCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
@@ -35,6 +35,14 @@ public class TextEntity {
         this.name = name;
     }
 
+    /**
+     * @return true if the entity is ranked and classified, which is stored as the {@code :RankableEntity} label
+     * when the entity is imported
+     */
+    public boolean isRankable() {
+        return RankableEntities.isRankable(name);
+    }
+
     @Override
     public String toString() {
         return "TextEntity{" +
@@ -0,0 +1,114 @@
+package org.kbastani.text;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kbastani.nlp.TextAnalysis;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Classifies the highest ranked text entities into categories in batches. Each batch claims up to
+ * {@code crawler.classification.batch-size} entities with a lease, reads the tweets of all of them with one query,
+ * sends the tweets of each entity to the category classifier as one document, with the requests of the batch in
+ * flight at the same time, and attaches the categories of the whole batch with one write.
+ * <p>
+ * The lease of a claim expires after {@code crawler.classification.lease-ms} milliseconds, so the entities of a
+ * batch that was interrupted are claimed again later.
+ *
+ * @author kbastani
+ */
+@Service
+public class TextEntityClassifier {
+
+    private final Log log = LogFactory.getLog(TextEntityClassifier.class);
+    private final TextEntityRepository textEntityRepository;
+    private final TextAnalysis textAnalysis;
+    private final int batchSize;
+    private final long lease;
+    private final int maxTweets;
+
+    @Autowired
+    public TextEntityClassifier(TextEntityRepository textEntityRepository, TextAnalysis textAnalysis,
+                                @Value("${crawler.classification.batch-size:10}") int batchSize,
+                                @Value("${crawler.classification.lease-ms:600000}") long lease,
+                                @Value("${crawler.classification.max-tweets:500}") int maxTweets) {
+        this.textEntityRepository = textEntityRepository;
+        this.textAnalysis = textAnalysis;
+        this.batchSize = batchSize;
+        this.lease = lease;
+        this.maxTweets = maxTweets;
+    }
+
+    /**
+     * Claims and classifies the next batch of text entities. An entity without categories, because it has too few
+     * tweets or because its classification failed, is marked as categorized so that it is skipped until it is due
+     * again.
+     *
+     * @return the number of entities that were classified
+     */
+    public int classifyNext() {
+        List<String> names = textEntityRepository.claimUncategorizedTextEntities(batchSize, lease);
+
+        if (names.isEmpty()) {
+            return 0;
+        }
+
+        log.info(String.format("Classifying %s text entities: %s", names.size(), String.join(", ", names)));
+
+        Map<String, List<String>> texts = new HashMap<>();
+        for (EntityTweets tweets : textEntityRepository.findTweetsForTextEntities(names, maxTweets)) {
+            texts.put(tweets.getName(), tweets.getTexts());
+        }
+
+        Map<String, CompletableFuture<List<String>>> categories = new LinkedHashMap<>();
+        for (String name : names) {
+            categories.put(name, classify(name, texts.getOrDefault(name, Collections.emptyList())));
+        }
+
+        List<Map<String, Object>> rows = new ArrayList<>(names.size());
+        categories.forEach((name, result) -> {
+            Map<String, Object> row = new HashMap<>(2);
+            row.put("name", name);
+            row.put("categories", result.join());
+            rows.add(row);
+        });
+
+        // Create new Category labeled nodes and connect any retrieved topics from the NLP API
+        // under the relationship: (:TextEntity)-[:HAS_CATEGORY]->(:Category)
+        textEntityRepository.saveTextEntityCategories(rows);
+
+        return rows.size();
+    }
+
+    /**
+     * Composes a single document from the tweets of an entity and sends it to the classifier
+     *
+     * @return a future of the lower cased names of the categories, which is empty when the entity could not be
+     * classified
+     */
+    private CompletableFuture<List<String>> classify(String name, List<String> tweets) {
+        if (tweets.size() < RankableEntities.MIN_TWEETS) {
+            log.info(String.format("No categories for text entity with name: %s...", name));
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        return textAnalysis.classifyTextAsync(String.join("\n", tweets))
+                .thenApply(result -> {
+                    List<String> categories = result.stream()
+                            .map(c -> c.getName().toLowerCase())
+                            .collect(Collectors.toList());
+                    log.info(String.format("Text entity categories found for %s: %s", name,
+                            String.join(", ", categories)));
+                    return categories;
+                })
+                .exceptionally(ex -> {
+                    log.info(String.format("Error classifying tweets of %s: %s", name, ex.getMessage()));
+                    return Collections.emptyList();
+                });
+    }
+}
@@ -3,8 +3,11 @@ package org.kbastani.text;
 import org.kbastani.tweet.Tweeted;
 import org.springframework.data.neo4j.annotation.Query;
 import org.springframework.data.neo4j.repository.Neo4jRepository;
+import org.springframework.data.repository.query.Param;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The {@link Tweeted} repository provides custom Cypher queries as repository search operations
@@ -13,30 +16,99 @@ import java.util.List;
  */
 public interface TextEntityRepository extends Neo4jRepository<TextEntity, Long> {
 
+    /**
+     * Claims the highest ranked text entities that are due for classification, which are the entities that are
+     * mentioned by at least {@link RankableEntities#MIN_TWEETS} tweets and were not categorized in the last 50
+     * minutes. The entities are read in order of PageRank from the index on {@code :RankableEntity(pagerank)} and
+     * filtered by the flags that are kept up to date at import, so the claim stops after the first due entities
+     * instead of ranking every entity. A claimed entity is leased until it is categorized or until the lease
+     * expires, so that concurrent claims never return the same entity.
+     *
+     * @param limit is the maximum number of entities to claim
+     * @param lease is the number of milliseconds that a claim is held for
+     * @return the names of the claimed entities
+     */
     @Query("WITH timestamp() as time\n" +
-            "MATCH (entity:TextEntity)<-[:HAS_ENTITY]-(t:Tweet)\n" +
-            "WHERE (exists(entity.pagerank) AND " +
-            "((time - coalesce(entity.lastCategorizedAt, time - 3000001) > 3000000))\n" +
-            "AND NOT entity.name  =~ \"(?ism)(http.*|RT.*|@.*|\\\\d*|#.*|.*http.*|.*@.*|\\\\w|\\\\W.*)\")\n" +
-            "WITH entity, count(DISTINCT t) as tweets\n" +
-            "WHERE tweets > 3\n" +
-            "RETURN entity\n" +
+            "MATCH (entity:RankableEntity)\n" +
+            "WHERE entity.pagerank >= 0.0 AND entity.eligible = true\n" +
+            "AND time - entity.lastCategorizedAt > 3000000\n" +
+            "AND time - coalesce(entity.categorizationLease, 0) > {lease}\n" +
+            "WITH time, entity\n" +
             "ORDER BY entity.pagerank DESC\n" +
-            "LIMIT 1\n")
-    TextEntity findUncategorizedTextEntity(Long time);
+            "LIMIT {limit}\n" +
+            "CALL apoc.lock.nodes([entity])\n" +
+            "WITH time, entity\n" +
+            "WHERE time - coalesce(entity.categorizationLease, 0) > {lease}\n" +
+            "SET entity.categorizationLease = time\n" +
+            "RETURN entity.name")
+    List<String> claimUncategorizedTextEntities(@Param("limit") Integer limit, @Param("lease") Long lease);
 
-    @Query("MATCH (entity:TextEntity { name: {name} })\n" +
-            "WITH entity\n" +
-            "FOREACH (x in {categories} | MERGE (category:Category { name: x })\n" +
+    /**
+     * Finds the text of up to {@code limit} distinct tweets for each of the text entities
+     */
+    @Query("UNWIND {names} as name\n" +
+            "MATCH (entity:TextEntity { name: name })<-[:HAS_ENTITY]-(tweet:Tweet)\n" +
+            "WITH entity.name as name, collect(DISTINCT tweet)[..{limit}] as tweets\n" +
+            "RETURN name, [tweet IN tweets | tweet.text] as texts")
+    List<EntityTweets> findTweetsForTextEntities(@Param("names") Collection<String> names,
+                                                 @Param("limit") Integer limit);
+
+    /**
+     * Attaches the categories of each row to its text entity, marks the entity as categorized, and releases its
+     * claim
+     *
+     * @param rows are maps of an entity {@code name} to the list of its {@code categories}
+     */
+    @Query("UNWIND {rows} as row\n" +
+            "MATCH (entity:TextEntity { name: row.name })\n" +
+            "FOREACH (x in row.categories | MERGE (category:Category { name: x })\n" +
             "   MERGE (category)<-[:HAS_CATEGORY]-(entity))\n" +
-            "SET entity.lastCategorizedAt = timestamp()")
-    void saveTextEntityCategories(String name, List<String> categories);
+            "SET entity.lastCategorizedAt = timestamp()\n" +
+            "REMOVE entity.categorizationLease")
+    void saveTextEntityCategories(@Param("rows") List<Map<String, Object>> rows);
 
-    @Query("MATCH (e:TextEntity)\n" +
-            "WHERE NOT e.name  =~ \"(?ism)(http.*|RT.*|@.*|\\\\d*|#.*|.*http.*|.*@.*|\\\\w|\\\\W.*)\"\n" +
+    @Query("MATCH (e:RankableEntity)\n" +
             "WITH collect(e) as nodes\n" +
             "CALL apoc.algo.pageRankWithConfig(nodes,{iterations:5,types:\"HAS_ENTITY\"}) YIELD node, score\n" +
             "WITH node, score\n" +
             "SET node.pagerank = score")
     void updatePageRankForEntityGraph();
-}
\ No newline at end of file
+
+    /**
+     * Labels the text entities that were imported before eligibility was decided at import as
+     * {@code :RankableEntity}, in batches. The backfill runs once, and is recorded on a {@code (:Migration)} node.
+     *
+     * @param excluded is the expression of the names that are not ranked, {@link RankableEntities#EXCLUDED_NAMES}
+     * @return the number of entities that were labeled, or null if the backfill already ran
+     */
+    @Query("OPTIONAL MATCH (migration:Migration { name: 'rankable-entities' })\n" +
+            "WITH migration WHERE migration IS NULL\n" +
+            "CALL apoc.periodic.iterate(\n" +
+            "   'MATCH (e:TextEntity) WHERE NOT e:RankableEntity AND NOT e.name =~ {excluded} RETURN e',\n" +
+            "   'SET e:RankableEntity', { batchSize: 10000, params: { excluded: {excluded} } }) YIELD total\n" +
+            "MERGE (done:Migration { name: 'rankable-entities' })\n" +
+            "SET done.completedAt = timestamp()\n" +
+            "RETURN total")
+    Long backfillRankableEntities(@Param("excluded") String excluded);
+
+    /**
+     * Counts the distinct tweets of the text entities that were imported before the counts were kept at import,
+     * and derives their classification flags, in batches. The backfill runs once, after the rankable entities
+     * were labeled, and is recorded on a {@code (:Migration)} node.
+     *
+     * @return the number of entities that were counted, or null if the backfill already ran
+     */
+    @Query("OPTIONAL MATCH (migration:Migration { name: 'entity-tweet-counts' })\n" +
+            "WITH migration WHERE migration IS NULL\n" +
+            "CALL apoc.periodic.iterate(\n" +
+            "   'MATCH (e:TextEntity) RETURN e',\n" +
+            "   'OPTIONAL MATCH (e)<-[:HAS_ENTITY]-(t:Tweet)\n" +
+            "    WITH e, count(DISTINCT t) as tweets\n" +
+            "    SET e.tweetCount = tweets,\n" +
+            "    e.eligible = e:RankableEntity AND tweets >= " + RankableEntities.MIN_TWEETS + ",\n" +
+            "    e.lastCategorizedAt = coalesce(e.lastCategorizedAt, 0)', { batchSize: 10000 }) YIELD total\n" +
+            "MERGE (done:Migration { name: 'entity-tweet-counts' })\n" +
+            "SET done.completedAt = timestamp()\n" +
+            "RETURN total")
+    Long backfillEntityTweetCounts();
+}
@@ -2,16 +2,20 @@ package org.kbastani.tweet;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.language.v1.AnnotateTextResponse;
 import com.google.cloud.language.v1.Entity;
 import com.google.cloud.language.v1.Sentiment;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.kbastani.math.Statistics;
-import org.kbastani.nlp.TextAnalysis;
+import org.kbastani.math.RunningStatistics;
+import org.kbastani.nlp.AnnotationBatcher;
 import org.kbastani.text.HasEntity;
 import org.kbastani.text.HasEntityRepository;
 import org.kbastani.text.TextEntity;
-import org.kbastani.user.SentimentResult;
+import org.kbastani.twitter.RateLimitedException;
+import org.kbastani.twitter.TwitterClient;
+import org.kbastani.user.CrawlCandidate;
+import org.kbastani.user.CrawlFrontier;
 import org.kbastani.user.User;
 import org.kbastani.user.UserRepository;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
@@ -22,8 +26,9 @@ import twitter4j.*;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
-import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 
 /**
@@ -38,29 +43,41 @@ public class TwitterService {
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
     private final Log log = LogFactory.getLog(TwitterService.class);
     private static final String QUEUE_NAME = "twitter.followers";
-    private final Twitter twitter;
+    private final TwitterClient twitterClient;
     private final UserRepository userRepository;
     private final TweetRepository tweetRepository;
     private final TweetedRepository tweetedRepository;
     private final HasEntityRepository hasEntityRepository;
     private final RabbitTemplate rabbitTemplate;
     private final ObjectMapper objectMapper;
+    private final AnnotationBatcher annotationBatcher;
+    private final CrawlFrontier crawlFrontier;
+    private final AtomicLong lastDiscoveryTime = new AtomicLong();
 
     // These two fields are constants that target users below follows/following thresholds
     private static final Integer MAX_FOLLOWS = 50000;
     private static final Integer MAX_FOLLOWERS = 50000;
 
+    // The maximum number of users that the Twitter API returns for a single users/lookup request
+    private static final int MAX_LOOKUP = 100;
+
+    // The number of statuses that are read from a user timeline with a single request
+    private static final int TIMELINE_PAGE = 20;
+
     @Autowired
-    public TwitterService(Twitter twitter, UserRepository userRepository, TweetRepository tweetRepository,
+    public TwitterService(TwitterClient twitterClient, UserRepository userRepository, TweetRepository tweetRepository,
                           TweetedRepository tweetedRepository, HasEntityRepository hasEntityRepository,
-                          RabbitTemplate rabbitTemplate, ObjectMapper objectMapper) {
-        this.twitter = twitter;
+                          RabbitTemplate rabbitTemplate, ObjectMapper objectMapper,
+                          AnnotationBatcher annotationBatcher, CrawlFrontier crawlFrontier) {
+        this.twitterClient = twitterClient;
         this.userRepository = userRepository;
         this.tweetRepository = tweetRepository;
         this.tweetedRepository = tweetedRepository;
         this.hasEntityRepository = hasEntityRepository;
         this.rabbitTemplate = rabbitTemplate;
         this.objectMapper = objectMapper;
+        this.annotationBatcher = annotationBatcher;
+        this.crawlFrontier = crawlFrontier;
     }
 
     /**
@@ -73,7 +90,7 @@ public class TwitterService {
         User user;
 
         try {
-            user = Optional.of(twitter.users().showUser(screenName))
+            user = Optional.of(twitterClient.showUser(screenName))
                     .map(User::new)
                     .get();
         } catch (TwitterException e) {
@@ -99,7 +116,7 @@ public class TwitterService {
         User user;
 
         try {
-            user = Optional.of(twitter.users().showUser(profileId))
+            user = Optional.of(twitterClient.showUser(profileId))
                     .map(User::new)
                     .get();
             user = getUser(user);
@@ -112,63 +129,201 @@ public class TwitterService {
     }
 
     /**
-     * Scans user activity and imports data into the graph.
+     * Discovers the next users to crawl in a single batch. The highest priority users are polled from the
+     * {@link CrawlFrontier}, and their profiles are fetched with one users/lookup request and saved with one write.
+     * If the request fails, the users are returned to the frontier. Only the users with manageable follows/follower counts are
+     * queued to have their networks imported. This is the batch that scheduled discovery runs, and it does not
+     * count as a discovery that suppresses the next scheduled run.
+     *
+     * @param limit is the maximum number of users to discover, up to 100
+     * @return the users that were queued for crawling
+     */
+    public List<User> discoverUsers(int limit) {
+        limit = Math.min(limit, MAX_LOOKUP);
+
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<CrawlCandidate> polled = crawlFrontier.poll(limit);
+        Set<Long> candidates = polled.stream().map(CrawlCandidate::getProfileId)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<Long, User> existing = userRepository.findUsersByProfileIds(candidates).stream()
+                .collect(Collectors.toMap(User::getProfileId, u -> u, (a, b) -> a));
+
+        // Users that were discovered since they entered the frontier, by this or another crawler, are skipped
+        existing.values().stream().filter(u -> u.getScreenName() != null)
+                .forEach(u -> candidates.remove(u.getProfileId()));
+
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<twitter4j.User> profiles;
+
+        try {
+            profiles = twitterClient.lookupUsers(candidates.stream().mapToLong(Long::longValue).toArray());
+        } catch (TwitterException | RuntimeException e) {
+            crawlFrontier.offer(polled.stream().filter(c -> candidates.contains(c.getProfileId()))
+                    .collect(Collectors.toList()));
+            throw new RuntimeException("User discovery failed...", e);
+        }
+        List<User> users = new ArrayList<>();
+        List<User> queued = new ArrayList<>();
+        long discoveredTime = new Date().getTime();
+
+        for (twitter4j.User profile : profiles) {
+            User user = existing.getOrDefault(profile.getId(), new User());
+            user.setProfile(profile);
+            candidates.remove(profile.getId());
+
+            // Only crawl users that have manageable follows/follower counts
+            if (user.getFollowerCount() < MAX_FOLLOWERS && user.getFollowsCount() < MAX_FOLLOWS) {
+                // Users are added to the discovery chain in the order that they were picked
+                user.setDiscoveredTime(discoveredTime + queued.size());
+                queued.add(user);
+            }
+
+            users.add(user);
+        }
+
+        if (!candidates.isEmpty()) {
+            userRepository.markUsersUnavailable(candidates);
+        }
+
+        userRepository.save(users, 0);
+
+        if (!queued.isEmpty()) {
+            // Append the queued users to the discovery chain
+            userRepository.appendToDiscoveryChain(queued.stream().map(User::getProfileId)
+                    .collect(Collectors.toList()));
+
+            for (User user : queued) {
+                try {
+                    rabbitTemplate.convertAndSend(QUEUE_NAME, objectMapper.writeValueAsString(user));
+                } catch (JsonProcessingException e) {
+                    log.error(e);
+                }
+            }
+        }
+
+        log.info(String.format("Discovered %s users, %s queued for crawling: %s", users.size(), queued.size(),
+                queued.stream().map(User::getScreenName).collect(Collectors.joining(", "))));
+
+        return queued;
+    }
+
+    /**
+     * Discovers the next user to crawl after the crawler finished importing a user, which postpones the next
+     * scheduled discovery
+     *
+     * @return the user that was queued for crawling, if any
+     */
+    public List<User> discoverNextUser() {
+        List<User> queued = discoverUsers(1);
+
+        if (!queued.isEmpty()) {
+            lastDiscoveryTime.set(System.currentTimeMillis());
+        }
+
+        return queued;
+    }
+
+    /**
+     * Scans user activity and imports data into the graph. The statuses that the user posted since the last scan
+     * are read after the newest status that was seen, and a page of older statuses is read before the oldest
+     * status that was imported, until the history of the user is imported. A user that posted more than a page
+     * since the last scan leaves a gap, which the activity scan scheduler keeps rare by scanning it more often.
      *
      * @param user is the user that is being scanned.
-     * @return the user that has been scanned, imported, and updated.
+     * @return the number of statuses that the user posted since the last scan, up to a page of 20. A user without
+     * a newest seen status is read from the top of its timeline, and its statuses are counted by their time.
+     * @throws RateLimitedException if the new statuses of the user could not be read, in which case the user is
+     *                              not marked as scanned
      */
-    public User scanUserActivity(User user) {
+    public int scanUserActivity(User user) {
 
         log.info(String.format("Scanning user activity for %s...", user.getScreenName()));
-        List<Tweet> tweets = new ArrayList<>();
-        List<Status> unfilteredTweets = new ArrayList<>();
+        List<Status> recent = Collections.emptyList();
+        List<Status> history = Collections.emptyList();
+        int posted = 0;
         try {
-            if (user.getLastImportedTweetId() == null) {
+            if (user.getLastSeenTweetId() == null) {
                 log.info(String.format("Getting initial user tweets for %s...", user.getScreenName()));
-                User finalUser2 = user;
-                unfilteredTweets = Optional.of(twitter.timelines().getUserTimeline(user.getScreenName(),
-                        new Paging(1, 20))).get();
-
-                tweets = unfilteredTweets.stream()
-                        .filter(t -> !t.isRetweet() && (!t.getText().startsWith("@")))
-                        .map(t -> new Tweet(t.getId(), t.getText(), finalUser2.getProfileId(), t.getCreatedAt()))
-                        .collect(Collectors.toList());
+                recent = twitterClient.getUserTimeline(user.getScreenName(), new Paging(1, TIMELINE_PAGE));
+                long lastScan = Optional.ofNullable(user.getLastActivityScan()).orElse(Long.MAX_VALUE);
+                posted = (int) recent.stream().filter(t -> t.getCreatedAt().getTime() > lastScan).count();
             } else {
-                log.info(String.format("Getting subsequent user tweets for %s...", user.getScreenName()));
-                User finalUser1 = user;
-                unfilteredTweets = Optional.of(twitter.timelines().getUserTimeline(user.getScreenName(),
-                        new Paging(1, 20,
-                                Integer.MAX_VALUE, user.getLastImportedTweetId()))).get();
-
-                tweets = unfilteredTweets.stream()
-                        .filter(t -> !t.isRetweet() && (!t.getText().startsWith("@")))
-                        .map(t -> new Tweet(t.getId(), t.getText(), finalUser1.getProfileId(), t.getCreatedAt()))
-                        .collect(Collectors.toList());
-
+                log.info(String.format("Getting new user tweets for %s...", user.getScreenName()));
+                recent = twitterClient.getUserTimeline(user.getScreenName(),
+                        new Paging(1, TIMELINE_PAGE, user.getLastSeenTweetId()));
+                posted = recent.size();
             }
+        } catch (RateLimitedException ex) {
+            log.info(String.format("Timeline of %s not fetched: %s", user.getScreenName(), ex.getMessage()));
+            throw ex;
         } catch (Exception ex) {
             log.error("Error fetching timeline for user", ex);
         }
 
+        if (user.getLastImportedTweetId() != null && !Boolean.TRUE.equals(user.getTimelineBackfilled())) {
+            try {
+                log.info(String.format("Getting older user tweets for %s...", user.getScreenName()));
+                // The maximum id is inclusive, so the oldest imported status is excluded
+                history = twitterClient.getUserTimeline(user.getScreenName(), new Paging(1, TIMELINE_PAGE)
+                        .maxId(user.getLastImportedTweetId() - 1));
+                user.setTimelineBackfilled(history.isEmpty());
+            } catch (Exception ex) {
+                log.info(String.format("Older tweets of %s not fetched: %s", user.getScreenName(), ex.getMessage()));
+            }
+        }
+
+        List<Status> unfilteredTweets = new ArrayList<>(recent);
+        unfilteredTweets.addAll(history);
+        User scannedUser = user;
+        List<Tweet> tweets = unfilteredTweets.stream()
+                .filter(t -> !t.isRetweet() && (!t.getText().startsWith("@")))
+                .map(t -> new Tweet(t.getId(), t.getText(), scannedUser.getProfileId(), t.getCreatedAt()))
+                .collect(Collectors.toList());
+
         List<Tweet> newTweets = new ArrayList<>();
+        RunningStatistics entitySentiment = new RunningStatistics();
 
         if (tweets.size() > 0) {
+            // Entities extracted from each tweet, keyed by tweet ID
+            Map<Long, List<Entity>> tweetEntities = new HashMap<>();
+
             try {
-                log.info(String.format("Analyzing sentiment for %s tweets by %s", tweets.size(), user.getScreenName()));
+                log.info(String.format("Analyzing sentiment and entities for %s tweets by %s", tweets.size(),
+                        user.getScreenName()));
                 List<Tweet> finalTweets = tweets;
                 User finalUser3 = user;
+
+                // Tweets are packed into as few documents as possible and every request is submitted before
+                // waiting, so that the requests are pipelined to the NLP API. Each annotation returns the document
+                // sentiment, the entities, and the entity sentiment of a single tweet.
+                List<CompletableFuture<AnnotateTextResponse>> annotations = annotationBatcher.annotate(finalTweets
+                        .stream().map(Tweet::getText).collect(Collectors.toList()));
+
                 IntStream.range(0, finalTweets.size()).forEach(i -> {
                     Tweet t = finalTweets.get(i);
-                    Sentiment sentiment = null;
+                    AnnotateTextResponse annotation = null;
                     try {
-                        sentiment = TextAnalysis.analyzeSentimentText(t.getText());
+                        annotation = annotations.get(i).join();
                     } catch (Exception ex) {
                         log.info(String.format("GCP sentiment analysis error: %s...", ex.getMessage()
                                 .substring(0, Math.min(ex.getMessage().length() - 1, 150))));
                     }
-                    if (sentiment != null) {
+                    if (annotation != null) {
+                        Sentiment sentiment = annotation.getDocumentSentiment();
                         t.setSentiment(Float.valueOf(sentiment.getScore()).doubleValue());
                         t.setMagnitude(Float.valueOf(sentiment.getMagnitude()).doubleValue());
+                        tweetEntities.put(t.getTweetId(), annotation.getEntitiesList());
                     } else {
                         t.setSentiment(0.0);
                         t.setMagnitude(0.0);
@@ -191,53 +346,51 @@ public class TwitterService {
 
                 tweetedRepository.saveTweetedRelationships(newTweets.stream()
                         .map(t -> new Tweeted(finalUser, t)).collect(Collectors.toSet()));
-
-                user.setLastImportedTweetId(newTweets.stream()
-                        .sorted(Comparator.comparing(Tweet::getTweetId))
-                        .limit(1)
-                        .map(Tweet::getTweetId)
-                        .findFirst().orElse(null));
             } catch (Exception ex) {
                 throw new RuntimeException("Error saving tweets to Neo4j", ex);
             }
 
             try {
-                log.info(String.format("Analyzing extracted entities for %s tweets by %s...", newTweets.size(),
+                log.info(String.format("Saving extracted entities for %s tweets by %s...", newTweets.size(),
                         user.getScreenName()));
-                // Entity name recognition using GCP NLP API and import connections to database
-                List<HasEntity> entityList = newTweets.stream().flatMap(t -> {
-                    List<Entity> entities = new ArrayList<>();
-                    try {
-                        entities = TextAnalysis.entitySentimentText(t.getText().toLowerCase());
-                    } catch (Exception ex) {
-                        log.info(String.format("GCP sentiment analysis error: %s...", ex.getMessage()
-                                .substring(0, Math.min(ex.getMessage().length() - 1, 150))));
-                    }
-                    return entities.stream().map(e -> new HasEntity(t, new TextEntity(e.getName()),
-                            Float.valueOf(e.getSalience()).doubleValue(),
-                            Optional.of(e.getSentiment().getScore()).orElse(0f).doubleValue(),
-                            Optional.of(e.getSentiment().getMagnitude()).orElse(0f).doubleValue()));
-                }).collect(Collectors.toList());
-
-                // Save all entities to database
-                hasEntityRepository.saveHasEntityRelationships(new HashSet<>(entityList));
+                // Connect each tweet to the entities recognized by the NLP API. Entity names are lower cased so
+                // that different spellings of the same entity are merged into a single node.
+                List<HasEntity> entityList = newTweets.stream()
+                        .flatMap(t -> tweetEntities.getOrDefault(t.getTweetId(), Collections.emptyList()).stream()
+                                .map(e -> new HasEntity(t, new TextEntity(e.getName().toLowerCase()),
+                                        Float.valueOf(e.getSalience()).doubleValue(),
+                                        Optional.of(e.getSentiment().getScore()).orElse(0f).doubleValue(),
+                                        Optional.of(e.getSentiment().getMagnitude()).orElse(0f).doubleValue())))
+                        .collect(Collectors.toList());
+
+                // Save all entities to database, and only count the sentiments of the relationships that are new,
+                // since the oldest tweet of the last scan and the tweets of a retried scan are fetched again
+                hasEntityRepository.saveHasEntityRelationships(new HashSet<>(entityList))
+                        .forEach(entitySentiment::add);
             } catch (Exception ex) {
-                log.error("Error contacting the GCP NLP API to extract sentiment", ex);
+                log.error("Error saving extracted entities to Neo4j", ex);
             }
         }
 
-        user.setLastImportedTweetId(unfilteredTweets.stream()
-                .sorted(Comparator.comparing(Status::getId))
-                .limit(1)
-                .map(Status::getId)
-                .findFirst().orElse(user.getLastImportedTweetId()));
+        // The newest status is the mark that the next scan reads new statuses after, and the oldest status is the
+        // mark that the history is read before
+        recent.stream().mapToLong(Status::getId).max().ifPresent(id -> scannedUser.setLastSeenTweetId(
+                Math.max(id, Optional.ofNullable(scannedUser.getLastSeenTweetId()).orElse(0L))));
+        unfilteredTweets.stream().mapToLong(Status::getId).min().ifPresent(id -> scannedUser.setLastImportedTweetId(
+                Math.min(id, Optional.ofNullable(scannedUser.getLastImportedTweetId()).orElse(Long.MAX_VALUE))));
 
         log.info(String.format("Activity scan completed for %s. %s tweets imported.", user.getScreenName(),
                 newTweets.size()));
         user.setLastActivityScan(new Date().getTime());
         user = userRepository.save(user);
 
-        return user;
+        if (entitySentiment.getCount() > 0) {
+            // Merge the sentiments of the new entities into the user's running statistics
+            userRepository.mergeSentimentStatistics(user.getProfileId(), entitySentiment.getCount(),
+                    entitySentiment.getMean(), entitySentiment.getM2());
+        }
+
+        return posted;
     }
 
     /**
@@ -254,6 +407,7 @@ public class TwitterService {
         }
 
         user = userRepository.save(user, 0);
+        crawlFrontier.remove(user.getProfileId());
 
         try {
             // Only crawl users that have manageable follows/follower counts
@@ -264,17 +418,14 @@ public class TwitterService {
                 // Update discovery time
                 userRepository.save(user, 0);
 
-                // Update the discovery chain
-                userRepository.updateDiscoveryChain();
+                // Append the user to the discovery chain
+                userRepository.appendToDiscoveryChain(Collections.singletonList(user.getProfileId()));
 
                 rabbitTemplate.convertAndSend(QUEUE_NAME, objectMapper.writeValueAsString(user));
+                lastDiscoveryTime.set(System.currentTimeMillis());
             } else {
-                // Retry
-                User nextUserToCrawl = userRepository.findNextUserToCrawl();
-
-                if (nextUserToCrawl != null) {
-                    this.discoverUserByProfileId(nextUserToCrawl.getProfileId());
-                }
+                // Retry with the next user in the crawl frontier
+                discoverNextUser();
             }
         } catch (JsonProcessingException e) {
             log.error(e);
@@ -282,37 +433,26 @@ public class TwitterService {
         return user;
     }
 
-    public void updateUserSentimentStatistics(Set<SentimentResult> sentimentResults) {
-
-        Set<User> users = sentimentResults.stream().map(result -> {
-            User user = new User();
-            user.setProfileId(result.getUserProfileId());
-            List<Double> sentiment = result.getSentiment();
-
-            // Update statistics
-            DoubleSummaryStatistics stats = DoubleStream.of(sentiment.stream()
-                    .mapToDouble(Double::doubleValue).toArray())
-                    .summaryStatistics();
-
-            // Calculate cumulative sentiment
-            user.setCumulativeSentiment(stats.getSum());
-
-            // Calculate average sentiment
-            user.setAverageSentiment(stats.getAverage());
-
-            // Calculate standard deviation sentiment
-            double stdDev = Statistics.standardDeviation(sentiment.stream()
-                    .mapToDouble(d -> d).toArray());
-            stdDev = Double.isNaN(stdDev) ? 0.0 : stdDev;
-            user.setStdSentiment(stdDev);
-
-            return user;
-        }).collect(Collectors.toSet());
+    /**
+     * Repairs the discovery chain off the hot path of discovery. A chain that was linked before it had a tail is
+     * adopted, and the users that were discovered but never appended are appended in the order of discovery.
+     */
+    public void repairDiscoveryChain() {
+        userRepository.adoptDiscoveryChainTail();
+        List<Long> unchained = userRepository.findUnchainedUsers();
 
-        log.info("Saving user sentiment statistics...");
+        if (!unchained.isEmpty()) {
+            userRepository.appendToDiscoveryChain(unchained);
+            log.info(String.format("Appended %s unchained users to the discovery chain", unchained.size()));
+        }
+    }
 
-        // Save updates for all users
-        userRepository.updateUserStatistics(users);
+    /**
+     * @return the time at which a user was last queued for crawling by the crawler or by a lookup, in milliseconds
+     * since the epoch, which excludes the users that scheduled discovery queued
+     */
+    public long getLastDiscoveryTime() {
+        return lastDiscoveryTime.get();
     }
 
 
@@ -0,0 +1,36 @@
+package org.kbastani.twitter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Twitter API endpoints that are used by the crawler, with the resource names that Twitter reports their
+ * rate limits under and the number of requests that a user token may make in each 15 minute window.
+ *
+ * @author kbastani
+ */
+public enum Endpoint {
+
+    FOLLOWERS_IDS("/followers/ids", 15),
+    FRIENDS_IDS("/friends/ids", 15),
+    USERS_SHOW("/users/show/:id", 900),
+    USERS_LOOKUP("/users/lookup", 900),
+    USER_TIMELINE("/statuses/user_timeline", 900);
+
+    public static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final String resource;
+    private final int defaultLimit;
+
+    Endpoint(String resource, int defaultLimit) {
+        this.resource = resource;
+        this.defaultLimit = defaultLimit;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public int getDefaultLimit() {
+        return defaultLimit;
+    }
+}
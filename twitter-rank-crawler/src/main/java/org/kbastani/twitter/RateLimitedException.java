@@ -0,0 +1,31 @@
+package org.kbastani.twitter;
+
+/**
+ * Thrown instead of calling the Twitter API when an endpoint has no requests left in its rate limit window.
+ *
+ * @author kbastani
+ */
+public class RateLimitedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Endpoint endpoint;
+    private final long retryAfter;
+
+    public RateLimitedException(Endpoint endpoint, long retryAfter) {
+        super(String.format("Rate limit reached for %s, retry in %s ms", endpoint.getResource(), retryAfter));
+        this.endpoint = endpoint;
+        this.retryAfter = retryAfter;
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the number of milliseconds until the endpoint may be called again
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
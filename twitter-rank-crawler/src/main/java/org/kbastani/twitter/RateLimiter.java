@@ -0,0 +1,77 @@
+package org.kbastani.twitter;
+
+import org.springframework.stereotype.Component;
+import twitter4j.RateLimitStatus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps a {@link TokenBucket} for every endpoint of every credential that is used to call the Twitter API.
+ * Requests take a token before they are sent, so that the crawler knows exactly when a request can be made
+ * instead of finding out from a failed request.
+ *
+ * @author kbastani
+ */
+@Component
+public class RateLimiter {
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    public RateLimiter() {
+        this(System::currentTimeMillis);
+    }
+
+    RateLimiter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Takes a token for a request to an endpoint with a credential
+     *
+     * @return zero if the request may be sent now, or the number of milliseconds until it may be sent
+     */
+    public long tryAcquire(String credential, Endpoint endpoint) {
+        return bucket(credential, endpoint).tryAcquire(clock.getAsLong());
+    }
+
+    /**
+     * @return the number of milliseconds until a request to an endpoint may be sent with a credential
+     */
+    public long delay(String credential, Endpoint endpoint) {
+        return bucket(credential, endpoint).delay(clock.getAsLong());
+    }
+
+    /**
+     * @return the number of requests to an endpoint that remain in the current window of a credential
+     */
+    public int remaining(String credential, Endpoint endpoint) {
+        return bucket(credential, endpoint).remaining(clock.getAsLong());
+    }
+
+    /**
+     * Corrects the bucket of an endpoint from the rate limit status that Twitter returned with a response
+     */
+    public void update(String credential, Endpoint endpoint, RateLimitStatus status) {
+        if (status != null) {
+            bucket(credential, endpoint).update(status.getLimit(), status.getRemaining(),
+                    status.getResetTimeInSeconds() * 1000L);
+        }
+    }
+
+    /**
+     * Empties the bucket of an endpoint after Twitter rejected a request for exceeding its rate limit
+     *
+     * @param retryAfter is the number of milliseconds until the endpoint may be called again
+     */
+    public void exhaust(String credential, Endpoint endpoint, long retryAfter) {
+        bucket(credential, endpoint).exhaust(clock.getAsLong() + retryAfter);
+    }
+
+    private TokenBucket bucket(String credential, Endpoint endpoint) {
+        return buckets.computeIfAbsent(credential + endpoint.getResource(),
+                key -> new TokenBucket(endpoint.getDefaultLimit()));
+    }
+}
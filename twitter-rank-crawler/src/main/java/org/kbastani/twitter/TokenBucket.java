@@ -0,0 +1,68 @@
+package org.kbastani.twitter;
+
+/**
+ * Tracks the requests that remain for one endpoint and one credential. Twitter refills its rate limits all at
+ * once at the end of a fixed window, so the bucket is refilled to its limit when the reset time has passed, and
+ * the count and reset time are corrected from the rate limit status of every response.
+ *
+ * @author kbastani
+ */
+class TokenBucket {
+
+    private int limit;
+    private int remaining;
+    private long resetAt;
+
+    TokenBucket(int limit) {
+        this.limit = limit;
+        this.remaining = limit;
+        this.resetAt = 0L;
+    }
+
+    /**
+     * Takes a token from the bucket.
+     *
+     * @return zero if a token was taken, or the number of milliseconds until the bucket is refilled
+     */
+    synchronized long tryAcquire(long now) {
+        refill(now);
+
+        if (remaining > 0) {
+            remaining--;
+            return 0L;
+        }
+
+        return resetAt - now;
+    }
+
+    /**
+     * @return the number of milliseconds until a token is available, or zero if one is available now
+     */
+    synchronized long delay(long now) {
+        refill(now);
+        return remaining > 0 ? 0L : resetAt - now;
+    }
+
+    synchronized int remaining(long now) {
+        refill(now);
+        return remaining;
+    }
+
+    synchronized void update(int limit, int remaining, long resetAt) {
+        this.limit = limit;
+        this.remaining = remaining;
+        this.resetAt = resetAt;
+    }
+
+    synchronized void exhaust(long resetAt) {
+        this.remaining = 0;
+        this.resetAt = resetAt;
+    }
+
+    private void refill(long now) {
+        if (now >= resetAt) {
+            remaining = limit;
+            resetAt = now + Endpoint.WINDOW_MILLIS;
+        }
+    }
+}
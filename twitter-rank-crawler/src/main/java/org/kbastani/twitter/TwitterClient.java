@@ -0,0 +1,133 @@
+package org.kbastani.twitter;
+
+import twitter4j.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Calls the Twitter API endpoints that the crawler uses with a pool of credentials. Each call is routed to the
+ * credential that has the most requests left for its endpoint, as tracked by the {@link RateLimiter}, so that
+ * the rate limit windows of all credentials are used before the crawler has to wait. A call that no credential
+ * can make is not sent, and fails with a {@link RateLimitedException} that tells the caller exactly when the
+ * first credential can make it again.
+ *
+ * @author kbastani
+ */
+public class TwitterClient {
+
+    private final Map<String, Twitter> credentials;
+    private final RateLimiter rateLimiter;
+
+    /**
+     * @param credentials are the Twitter clients of the pool, keyed by the name of their credential
+     */
+    public TwitterClient(Map<String, Twitter> credentials, RateLimiter rateLimiter) {
+        if (credentials.isEmpty()) {
+            throw new IllegalArgumentException("At least one Twitter credential is required");
+        }
+        this.credentials = new LinkedHashMap<>(credentials);
+        this.rateLimiter = rateLimiter;
+    }
+
+    public User showUser(String screenName) throws TwitterException {
+        return call(Endpoint.USERS_SHOW, twitter -> twitter.users().showUser(screenName));
+    }
+
+    public User showUser(long profileId) throws TwitterException {
+        return call(Endpoint.USERS_SHOW, twitter -> twitter.users().showUser(profileId));
+    }
+
+    /**
+     * Returns the profiles of up to 100 users with a single request. Users that are suspended or deleted are
+     * left out of the response.
+     */
+    public ResponseList<User> lookupUsers(long... profileIds) throws TwitterException {
+        return call(Endpoint.USERS_LOOKUP, twitter -> twitter.users().lookupUsers(profileIds));
+    }
+
+    public IDs getFollowersIDs(long profileId, long cursor) throws TwitterException {
+        return call(Endpoint.FOLLOWERS_IDS, twitter -> twitter.getFollowersIDs(profileId, cursor));
+    }
+
+    public IDs getFriendsIDs(long profileId, long cursor) throws TwitterException {
+        return call(Endpoint.FRIENDS_IDS, twitter -> twitter.getFriendsIDs(profileId, cursor));
+    }
+
+    public ResponseList<Status> getUserTimeline(String screenName, Paging paging) throws TwitterException {
+        return call(Endpoint.USER_TIMELINE, twitter -> twitter.timelines().getUserTimeline(screenName, paging));
+    }
+
+    /**
+     * @return the number of milliseconds until any credential may call the endpoint, or zero if one may now
+     */
+    public long delay(Endpoint endpoint) {
+        return credentials.keySet().stream()
+                .mapToLong(credential -> rateLimiter.delay(credential, endpoint))
+                .min()
+                .orElse(0L);
+    }
+
+    /**
+     * @return the number of requests to an endpoint that remain in the current windows of all credentials
+     */
+    public int remaining(Endpoint endpoint) {
+        return credentials.keySet().stream()
+                .mapToInt(credential -> rateLimiter.remaining(credential, endpoint))
+                .sum();
+    }
+
+    private <T extends TwitterResponse> T call(Endpoint endpoint, TwitterCall<T> call) throws TwitterException {
+        String credential = acquire(endpoint);
+
+        try {
+            T response = call.call(credentials.get(credential));
+            rateLimiter.update(credential, endpoint, response.getRateLimitStatus());
+            return response;
+        } catch (TwitterException ex) {
+            rateLimiter.update(credential, endpoint, ex.getRateLimitStatus());
+            if (ex.exceededRateLimitation()) {
+                long retryAfter = ex.getRateLimitStatus() == null ? Endpoint.WINDOW_MILLIS :
+                        Math.max(1000L, ex.getRateLimitStatus().getSecondsUntilReset() * 1000L);
+                rateLimiter.exhaust(credential, endpoint, retryAfter);
+                // Another credential may still have requests left for the endpoint
+                return call(endpoint, call);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Takes a token from the credential with the most remaining requests for an endpoint
+     *
+     * @return the name of the credential to call the endpoint with
+     */
+    private String acquire(Endpoint endpoint) {
+        while (true) {
+            String best = null;
+            int bestRemaining = 0;
+
+            for (String credential : credentials.keySet()) {
+                int remaining = rateLimiter.remaining(credential, endpoint);
+                if (remaining > bestRemaining) {
+                    best = credential;
+                    bestRemaining = remaining;
+                }
+            }
+
+            if (best == null) {
+                throw new RateLimitedException(endpoint, delay(endpoint));
+            }
+
+            // Another thread may have taken the last token of this credential since it was chosen
+            if (rateLimiter.tryAcquire(best, endpoint) == 0L) {
+                return best;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface TwitterCall<T> {
+        T call(Twitter twitter) throws TwitterException;
+    }
+}
@@ -0,0 +1,82 @@
+package org.kbastani.twitter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Twitter app and access token pairs that the crawler may use, bound from {@code twitter.credentials}.
+ * Every credential has its own rate limit windows, so each one that is added raises the number of requests that
+ * the crawler can make in a window. When no credentials are listed, the single {@code spring.social.twitter.*}
+ * credential is used.
+ * <pre>
+ * twitter:
+ *   credentials:
+ *     - name: crawler-1
+ *       app-id: ...
+ *       app-secret: ...
+ *       access-token: ...
+ *       access-token-secret: ...
+ * </pre>
+ *
+ * @author kbastani
+ */
+public class TwitterProperties {
+
+    private List<Credential> credentials = new ArrayList<>();
+
+    public List<Credential> getCredentials() {
+        return credentials;
+    }
+
+    public void setCredentials(List<Credential> credentials) {
+        this.credentials = credentials;
+    }
+
+    public static class Credential {
+        private String name;
+        private String appId;
+        private String appSecret;
+        private String accessToken;
+        private String accessTokenSecret;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getAppId() {
+            return appId;
+        }
+
+        public void setAppId(String appId) {
+            this.appId = appId;
+        }
+
+        public String getAppSecret() {
+            return appSecret;
+        }
+
+        public void setAppSecret(String appSecret) {
+            this.appSecret = appSecret;
+        }
+
+        public String getAccessToken() {
+            return accessToken;
+        }
+
+        public void setAccessToken(String accessToken) {
+            this.accessToken = accessToken;
+        }
+
+        public String getAccessTokenSecret() {
+            return accessTokenSecret;
+        }
+
+        public void setAccessTokenSecret(String accessTokenSecret) {
+            this.accessTokenSecret = accessTokenSecret;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.kbastani.user;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * A ranked user whose activity is scanned, with the time of its last scan and the interval that its scans were
+ * adapted to, which are null before the first scan
+ */
+@QueryResult
+public class ActivityScanCandidate {
+    private Long profileId;
+    private Long lastActivityScan;
+    private Long activityScanInterval;
+
+    public ActivityScanCandidate() {
+    }
+
+    public ActivityScanCandidate(Long profileId, Long lastActivityScan, Long activityScanInterval) {
+        this.profileId = profileId;
+        this.lastActivityScan = lastActivityScan;
+        this.activityScanInterval = activityScanInterval;
+    }
+
+    public Long getProfileId() {
+        return profileId;
+    }
+
+    public void setProfileId(Long profileId) {
+        this.profileId = profileId;
+    }
+
+    public Long getLastActivityScan() {
+        return lastActivityScan;
+    }
+
+    public void setLastActivityScan(Long lastActivityScan) {
+        this.lastActivityScan = lastActivityScan;
+    }
+
+    public Long getActivityScanInterval() {
+        return activityScanInterval;
+    }
+
+    public void setActivityScanInterval(Long activityScanInterval) {
+        this.activityScanInterval = activityScanInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "ActivityScanCandidate{" +
+                "profileId=" + profileId +
+                ", lastActivityScan=" + lastActivityScan +
+                ", activityScanInterval=" + activityScanInterval +
+                '}';
+    }
+}
@@ -0,0 +1,56 @@
+package org.kbastani.user;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * An undiscovered user in the crawl frontier, with the PageRank and the number of followers that it is
+ * prioritized by
+ */
+@QueryResult
+public class CrawlCandidate {
+    private Long profileId;
+    private Double pagerank;
+    private Integer followers;
+
+    public CrawlCandidate() {
+    }
+
+    public CrawlCandidate(Long profileId, Double pagerank, Integer followers) {
+        this.profileId = profileId;
+        this.pagerank = pagerank;
+        this.followers = followers;
+    }
+
+    public Long getProfileId() {
+        return profileId;
+    }
+
+    public void setProfileId(Long profileId) {
+        this.profileId = profileId;
+    }
+
+    public Double getPagerank() {
+        return pagerank;
+    }
+
+    public void setPagerank(Double pagerank) {
+        this.pagerank = pagerank;
+    }
+
+    public Integer getFollowers() {
+        return followers;
+    }
+
+    public void setFollowers(Integer followers) {
+        this.followers = followers;
+    }
+
+    @Override
+    public String toString() {
+        return "CrawlCandidate{" +
+                "profileId=" + profileId +
+                ", pagerank=" + pagerank +
+                ", followers=" + followers +
+                '}';
+    }
+}
@@ -0,0 +1,276 @@
+package org.kbastani.user;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kbastani.graph.LongIntHashMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The crawl frontier holds the undiscovered users of the follower graph in an indexed max-heap, ordered by PageRank
+ * and then by number of followers, so that the next users to discover are found in O(log n) instead of with a
+ * scan of the graph. Users without a PageRank are only eligible for discovery once they have more than two
+ * followers, like the queries that the frontier replaces.
+ * <p>
+ * The frontier is rebuilt from Neo4j on startup and from each full PageRank job, and in between the follower
+ * counts are updated as FOLLOWS relationships are imported. It is bounded by {@code crawler.frontier.max-size}
+ * users, and keeps the highest priority users when a rebuild exceeds the bound.
+ *
+ * @author kbastani
+ */
+@Component
+public class CrawlFrontier {
+
+    static final double UNRANKED = -1.0;
+    static final int MIN_FOLLOWERS = 3;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Log log = LogFactory.getLog(CrawlFrontier.class);
+    private final UserRepository userRepository;
+    private final int maxSize;
+
+    // The heap, where the entry at position i has children at positions 2i + 1 and 2i + 2
+    private LongIntHashMap positions = new LongIntHashMap(INITIAL_CAPACITY);
+    private long[] profileIds = new long[INITIAL_CAPACITY];
+    private double[] pageranks = new double[INITIAL_CAPACITY];
+    private int[] followers = new int[INITIAL_CAPACITY];
+    private int size;
+
+    @Autowired
+    public CrawlFrontier(UserRepository userRepository,
+                         @Value("${crawler.frontier.max-size:1000000}") int maxSize) {
+        this.userRepository = userRepository;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Replaces the frontier with the highest priority undiscovered users in Neo4j
+     */
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        List<CrawlCandidate> candidates = userRepository.findCrawlCandidates(maxSize);
+        int count = candidates.size();
+        long[] ids = new long[count];
+        double[] ranks = new double[count];
+        int[] counts = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            CrawlCandidate candidate = candidates.get(i);
+            ids[i] = candidate.getProfileId();
+            ranks[i] = candidate.getPagerank() == null ? UNRANKED : candidate.getPagerank();
+            counts[i] = candidate.getFollowers() == null ? 0 : candidate.getFollowers();
+        }
+
+        replace(ids, ranks, counts, count);
+        log.info(String.format("Crawl frontier rebuilt with %s users in %sms", size(),
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Replaces the frontier with the first {@code count} users of the arrays, which are not modified
+     *
+     * @param ids    are the profile ids of the undiscovered users
+     * @param ranks  are the PageRanks of the users, or {@link #UNRANKED}
+     * @param counts are the numbers of followers of the users
+     */
+    public synchronized void replace(long[] ids, double[] ranks, int[] counts, int count) {
+        int capacity = Math.max(INITIAL_CAPACITY, count);
+        positions = new LongIntHashMap(Math.min(count, maxSize));
+        profileIds = new long[capacity];
+        pageranks = new double[capacity];
+        followers = new int[capacity];
+        size = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (eligible(ranks[i], counts[i]) && positions.putIfAbsent(ids[i], size) == size) {
+                profileIds[size] = ids[i];
+                pageranks[size] = ranks[i];
+                followers[size] = counts[i];
+                size++;
+            }
+        }
+
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+
+        if (size > maxSize) {
+            truncate();
+        }
+    }
+
+    /**
+     * Counts a new follower for each of the users. Users that are not in the frontier yet are added with a single
+     * follower while there is room, and become eligible once more followers are counted or a PageRank job ranks
+     * them.
+     *
+     * @param ids are the profile ids of the undiscovered users that were followed
+     */
+    public synchronized void addFollowers(Collection<Long> ids) {
+        for (Long id : ids) {
+            int position = positions.get(id);
+            if (position != LongIntHashMap.MISSING) {
+                followers[position]++;
+                siftUp(position);
+            } else if (size < maxSize) {
+                insert(id, UNRANKED, 1);
+            }
+        }
+    }
+
+    /**
+     * Adds users back to the frontier, with the priority that they were polled with
+     */
+    public synchronized void offer(Collection<CrawlCandidate> candidates) {
+        for (CrawlCandidate candidate : candidates) {
+            if (positions.get(candidate.getProfileId()) == LongIntHashMap.MISSING && size < maxSize) {
+                insert(candidate.getProfileId(), candidate.getPagerank(), candidate.getFollowers());
+            }
+        }
+    }
+
+    /**
+     * Removes the highest priority users that are eligible for discovery from the frontier
+     *
+     * @param limit is the maximum number of users to remove
+     * @return the removed users, in order of priority
+     */
+    public synchronized List<CrawlCandidate> poll(int limit) {
+        List<CrawlCandidate> candidates = new ArrayList<>(Math.min(limit, size));
+
+        while (candidates.size() < limit && size > 0 && eligible(pageranks[0], followers[0])) {
+            candidates.add(new CrawlCandidate(profileIds[0], pageranks[0], followers[0]));
+            removeAt(0);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Removes a user from the frontier once it has been discovered
+     */
+    public synchronized void remove(long profileId) {
+        int position = positions.get(profileId);
+        if (position != LongIntHashMap.MISSING) {
+            removeAt(position);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private static boolean eligible(double pagerank, int count) {
+        return pagerank != UNRANKED || count >= MIN_FOLLOWERS;
+    }
+
+    private void insert(long id, double pagerank, int count) {
+        if (size == profileIds.length) {
+            int capacity = size * 2;
+            profileIds = Arrays.copyOf(profileIds, capacity);
+            pageranks = Arrays.copyOf(pageranks, capacity);
+            followers = Arrays.copyOf(followers, capacity);
+        }
+
+        profileIds[size] = id;
+        pageranks[size] = pagerank;
+        followers[size] = count;
+        positions.put(id, size);
+        siftUp(size++);
+    }
+
+    private void removeAt(int position) {
+        positions.remove(profileIds[position]);
+        size--;
+
+        if (position < size) {
+            move(size, position);
+            siftDown(position);
+            siftUp(position);
+        }
+    }
+
+    /**
+     * Keeps the {@code maxSize} highest priority users. They are polled from the heap in order, and an array that
+     * is sorted by descending priority is a valid heap.
+     */
+    private void truncate() {
+        long[] ids = new long[maxSize];
+        double[] ranks = new double[maxSize];
+        int[] counts = new int[maxSize];
+
+        for (int i = 0; i < maxSize; i++) {
+            ids[i] = profileIds[0];
+            ranks[i] = pageranks[0];
+            counts[i] = followers[0];
+            move(--size, 0);
+            siftDown(0);
+        }
+
+        positions = new LongIntHashMap(maxSize);
+        for (int i = 0; i < maxSize; i++) {
+            positions.put(ids[i], i);
+        }
+
+        profileIds = ids;
+        pageranks = ranks;
+        followers = counts;
+        size = maxSize;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!higher(position, parent)) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        for (int child = 2 * position + 1; child < size; child = 2 * position + 1) {
+            if (child + 1 < size && higher(child + 1, child)) {
+                child++;
+            }
+            if (!higher(child, position)) {
+                break;
+            }
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private boolean higher(int a, int b) {
+        return pageranks[a] > pageranks[b] || (pageranks[a] == pageranks[b] && followers[a] > followers[b]);
+    }
+
+    private void swap(int a, int b) {
+        long id = profileIds[a];
+        double rank = pageranks[a];
+        int count = followers[a];
+        profileIds[a] = profileIds[b];
+        pageranks[a] = pageranks[b];
+        followers[a] = followers[b];
+        profileIds[b] = id;
+        pageranks[b] = rank;
+        followers[b] = count;
+        positions.put(profileIds[a], a);
+        positions.put(id, b);
+    }
+
+    private void move(int from, int to) {
+        profileIds[to] = profileIds[from];
+        pageranks[to] = pageranks[from];
+        followers[to] = followers[from];
+        positions.put(profileIds[to], to);
+    }
+}
@@ -4,8 +4,9 @@ import org.springframework.data.neo4j.annotation.Query;
 import org.springframework.data.neo4j.repository.Neo4jRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
 
-import java.util.Set;
+import java.util.List;
 
 /**
  * This repository provides access to create efficient batched relationships between users using Spring Data Neo4j
@@ -14,13 +15,43 @@ import java.util.Set;
 public interface FollowsRepository extends Neo4jRepository<Follows, Long> {
 
     /**
-     * Efficiently batches the creation of many FOLLOWS relationships
-     * between {@link User} nodes
+     * Efficiently batches the creation of FOLLOWS relationships from many followers to a single {@link User}.
+     * The follower of each new relationship is marked as changed so that the incremental PageRank job
+     * propagates the new edge.
      *
-     * @param follows a set of relationship entities containing a user "A" who follows a user "B"
+     * @param profileId   is the profile id of the user who is followed
+     * @param followerIds are the profile ids of the followers of the user
      */
-    @Query("FOREACH(x in {follows} | MERGE (a:User { profileId: x.userA.profileId })\n" +
-            "MERGE (b:User { profileId: x.userB.profileId })\n" +
-            "MERGE (a)-[:FOLLOWS]->(b))")
-    void saveFollows(@Param("follows") Set<Follows> follows);
+    @RestResource(exported = false)
+    @Query("MERGE (user:User { profileId: {profileId} })\n" +
+            "WITH user\n" +
+            "UNWIND {followerIds} as followerId\n" +
+            "MERGE (follower:User { profileId: followerId })\n" +
+            "MERGE (follower)-[:FOLLOWS]->(user)\n" +
+            "ON CREATE SET follower.pagerankChangedAt = timestamp()")
+    void saveFollowers(@Param("profileId") Long profileId, @Param("followerIds") long[] followerIds);
+
+    /**
+     * Efficiently batches the creation of FOLLOWS relationships from a single {@link User} to many friends.
+     * The user is marked as changed when any new relationship is created so that the incremental PageRank job
+     * propagates the new edges.
+     *
+     * @param profileId is the profile id of the user who follows the friends
+     * @param friendIds are the profile ids of the users that the user follows
+     * @return the profile ids of the friends that have not been discovered yet and that the user was not already
+     * known to follow, for the crawl frontier. The relationships that are created are flagged while they are
+     * merged, so that a friend is only counted once when a user is imported again or a chunk is retried.
+     */
+    @RestResource(exported = false)
+    @Query("MERGE (user:User { profileId: {profileId} })\n" +
+            "WITH user\n" +
+            "UNWIND {friendIds} as friendId\n" +
+            "MERGE (friend:User { profileId: friendId })\n" +
+            "MERGE (user)-[follows:FOLLOWS]->(friend)\n" +
+            "ON CREATE SET user.pagerankChangedAt = timestamp(), follows.created = true\n" +
+            "WITH DISTINCT friend, follows WHERE follows.created\n" +
+            "REMOVE follows.created\n" +
+            "WITH friend WHERE NOT exists(friend.screenName) AND NOT coalesce(friend.unavailable, false)\n" +
+            "RETURN friend.profileId")
+    List<Long> saveFriends(@Param("profileId") Long profileId, @Param("friendIds") long[] friendIds);
 }
@@ -0,0 +1,74 @@
+package org.kbastani.user;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Imports the follower and friend ids of a user from the Twitter API into Neo4j. The ids are kept as a primitive
+ * {@code long[]} from the API response to the query parameters, and are written in sorted chunks of
+ * {@code crawler.follows.batch-size} ids with a single UNWIND statement per chunk. Sorting the ids keeps the
+ * node lookups of a chunk close together in the unique constraint index. The friends that have not been discovered
+ * yet are counted as followed in the {@link CrawlFrontier} when their FOLLOWS relationship is created.
+ *
+ * @author kbastani
+ */
+@Component
+public class FollowsWriter {
+
+    private final Log log = LogFactory.getLog(FollowsWriter.class);
+    private final FollowsRepository followsRepository;
+    private final CrawlFrontier crawlFrontier;
+    private final int batchSize;
+    private final int maxRetries;
+
+    @Autowired
+    public FollowsWriter(FollowsRepository followsRepository, CrawlFrontier crawlFrontier,
+                         @Value("${crawler.follows.batch-size:5000}") int batchSize,
+                         @Value("${crawler.follows.max-retries:4}") int maxRetries) {
+        this.followsRepository = followsRepository;
+        this.crawlFrontier = crawlFrontier;
+        this.batchSize = batchSize;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Saves FOLLOWS relationships from each of the followers to the user with the profile id
+     */
+    public void saveFollowers(Long profileId, long[] followerIds) {
+        write(profileId, followerIds, followsRepository::saveFollowers);
+    }
+
+    /**
+     * Saves FOLLOWS relationships from the user with the profile id to each of the friends
+     */
+    public void saveFriends(Long profileId, long[] friendIds) {
+        write(profileId, friendIds, (id, chunk) ->
+                crawlFrontier.addFollowers(followsRepository.saveFriends(id, chunk)));
+    }
+
+    private void write(Long profileId, long[] ids, BiConsumer<Long, long[]> statement) {
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int retryCount = 0;
+
+        for (int from = 0; from < sorted.length; ) {
+            int to = Math.min(from + batchSize, sorted.length);
+            try {
+                statement.accept(profileId, Arrays.copyOfRange(sorted, from, to));
+                from = to;
+            } catch (RuntimeException ex) {
+                if (retryCount++ < maxRetries) {
+                    log.info(String.format("Retrying FOLLOWS batch for %s: %s", profileId, ex.getMessage()));
+                } else {
+                    throw ex;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.kbastani.user;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Maintains the positions of the ranked users on the leader board. After a PageRank job finishes, the scores of the
+ * ranked users are read into the crawler and sorted there, and only the users whose position changed are written
+ * back, in batched UNWIND statements of {@code ranking.write-batch-size} rows. Each batch is its own transaction, so
+ * that a ranking update never holds the locks of every ranked user at once.
+ *
+ * @author kbastani
+ */
+@Service
+public class RankPositions {
+
+    private static final String READ_RANKED_USERS = "MATCH (user:User) WHERE exists(user.pagerank) AND " +
+            "exists(user.screenName)\n" +
+            "RETURN user.profileId as profileId, user.pagerank as pagerank, user.currentRank as currentRank,\n" +
+            "exists(user.lastPageRank) as ranked";
+
+    private static final String WRITE_RANKS = "UNWIND {rows} as row\n" +
+            "MATCH (user:User { profileId: row.profileId })\n" +
+            "SET user.previousRank = row.previousRank, user.currentRank = row.currentRank,\n" +
+            "user.lastPageRank = row.lastPageRank";
+
+    private final Log log = LogFactory.getLog(RankPositions.class);
+    private final SessionFactory sessionFactory;
+    private final int batchSize;
+
+    @Autowired
+    public RankPositions(SessionFactory sessionFactory,
+                         @Value("${ranking.write-batch-size:10000}") int batchSize) {
+        this.sessionFactory = sessionFactory;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Recomputes the position of every ranked user, and writes the current rank, the previous rank, and the
+     * PageRank that the position was computed from, for each user whose position changed or who was not ranked
+     * before.
+     *
+     * @return the number of users that were written
+     */
+    public int update() {
+        Session session = sessionFactory.openSession();
+        long start = System.currentTimeMillis();
+
+        Ranking ranking = Ranking.read(session.query(READ_RANKED_USERS, Collections.emptyMap(), true));
+        int[] order = ranking.order();
+        List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+        int written = 0;
+
+        for (int i = 0; i < order.length; i++) {
+            int user = order[i];
+            int position = i + 1;
+
+            if (ranking.currentRanks[user] != position || !ranking.ranked[user]) {
+                Map<String, Object> row = new HashMap<>(4);
+                row.put("profileId", ranking.profileIds[user]);
+                row.put("previousRank", Math.max(ranking.currentRanks[user], 0));
+                row.put("currentRank", position);
+                row.put("lastPageRank", ranking.pageranks[user]);
+                rows.add(row);
+
+                if (rows.size() == batchSize) {
+                    written += flush(session, rows);
+                }
+            }
+        }
+
+        written += flush(session, rows);
+
+        log.info(String.format("Ranked %s users, wrote %s changed positions in %sms", order.length, written,
+                System.currentTimeMillis() - start));
+
+        return written;
+    }
+
+    private static int flush(Session session, List<Map<String, Object>> rows) {
+        int size = rows.size();
+
+        if (size > 0) {
+            session.query(WRITE_RANKS, Collections.singletonMap("rows", rows));
+            rows.clear();
+        }
+
+        return size;
+    }
+
+    /**
+     * The ranked users of a snapshot in primitive arrays, where a missing current rank is -1
+     */
+    static class Ranking {
+        long[] profileIds;
+        double[] pageranks;
+        int[] currentRanks;
+        boolean[] ranked;
+        int size;
+
+        Ranking(int capacity) {
+            profileIds = new long[capacity];
+            pageranks = new double[capacity];
+            currentRanks = new int[capacity];
+            ranked = new boolean[capacity];
+        }
+
+        static Ranking read(Iterable<Map<String, Object>> rows) {
+            Ranking ranking = new Ranking(1024);
+
+            for (Map<String, Object> row : rows) {
+                Object currentRank = row.get("currentRank");
+                ranking.add(((Number) row.get("profileId")).longValue(),
+                        ((Number) row.get("pagerank")).doubleValue(),
+                        currentRank == null ? -1 : ((Number) currentRank).intValue(),
+                        Boolean.TRUE.equals(row.get("ranked")));
+            }
+
+            return ranking;
+        }
+
+        void add(long profileId, double pagerank, int currentRank, boolean isRanked) {
+            if (size == profileIds.length) {
+                profileIds = Arrays.copyOf(profileIds, size * 2);
+                pageranks = Arrays.copyOf(pageranks, size * 2);
+                currentRanks = Arrays.copyOf(currentRanks, size * 2);
+                ranked = Arrays.copyOf(ranked, size * 2);
+            }
+
+            profileIds[size] = profileId;
+            pageranks[size] = pagerank;
+            currentRanks[size] = currentRank;
+            ranked[size++] = isRanked;
+        }
+
+        /**
+         * Sorts the indices of the users with a bottom-up merge sort of a primitive array, so that no index is boxed
+         *
+         * @return the users in order of descending PageRank, with ties ordered by profile id
+         */
+        int[] order() {
+            int[] indices = new int[size];
+            int[] merged = new int[size];
+
+            for (int i = 0; i < size; i++) {
+                indices[i] = i;
+            }
+
+            for (int width = 1; width < size; width *= 2) {
+                for (int from = 0; from < size; from += 2 * width) {
+                    int middle = Math.min(from + width, size);
+                    int to = Math.min(from + 2 * width, size);
+                    int left = from;
+                    int right = middle;
+                    int next = from;
+
+                    while (left < middle && right < to) {
+                        merged[next++] = compare(indices[left], indices[right]) <= 0 ?
+                                indices[left++] : indices[right++];
+                    }
+                    while (left < middle) {
+                        merged[next++] = indices[left++];
+                    }
+                    while (right < to) {
+                        merged[next++] = indices[right++];
+                    }
+                }
+
+                int[] sorted = merged;
+                merged = indices;
+                indices = sorted;
+            }
+
+            return indices;
+        }
+
+        private int compare(int a, int b) {
+            int compare = Double.compare(pageranks[b], pageranks[a]);
+            return compare != 0 ? compare : Long.compare(profileIds[a], profileIds[b]);
+        }
+    }
+}
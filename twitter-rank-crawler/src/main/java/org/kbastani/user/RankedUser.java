@@ -0,0 +1,114 @@
+package org.kbastani.user;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * A projection of a ranked {@link User} that only carries the fields shown on the leader board. It is mapped from
+ * the columns of a query rather than from a node, so none of the relationships of a user are loaded.
+ */
+@QueryResult
+public class RankedUser {
+    private Long profileId;
+    private String screenName;
+    private String name;
+    private String profileImageUrl;
+    private Integer followerCount;
+    private Integer followsCount;
+    private Double pagerank;
+    private Integer currentRank;
+    private Integer previousRank;
+    private Integer discoveredRank;
+
+    public RankedUser() {
+    }
+
+    public Long getProfileId() {
+        return profileId;
+    }
+
+    public void setProfileId(Long profileId) {
+        this.profileId = profileId;
+    }
+
+    public String getScreenName() {
+        return screenName;
+    }
+
+    public void setScreenName(String screenName) {
+        this.screenName = screenName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getProfileImageUrl() {
+        return profileImageUrl;
+    }
+
+    public void setProfileImageUrl(String profileImageUrl) {
+        this.profileImageUrl = profileImageUrl;
+    }
+
+    public Integer getFollowerCount() {
+        return followerCount;
+    }
+
+    public void setFollowerCount(Integer followerCount) {
+        this.followerCount = followerCount;
+    }
+
+    public Integer getFollowsCount() {
+        return followsCount;
+    }
+
+    public void setFollowsCount(Integer followsCount) {
+        this.followsCount = followsCount;
+    }
+
+    public Double getPagerank() {
+        return pagerank;
+    }
+
+    public void setPagerank(Double pagerank) {
+        this.pagerank = pagerank;
+    }
+
+    public Integer getCurrentRank() {
+        return currentRank;
+    }
+
+    public void setCurrentRank(Integer currentRank) {
+        this.currentRank = currentRank;
+    }
+
+    public Integer getPreviousRank() {
+        return previousRank;
+    }
+
+    public void setPreviousRank(Integer previousRank) {
+        this.previousRank = previousRank;
+    }
+
+    public Integer getDiscoveredRank() {
+        return discoveredRank;
+    }
+
+    public void setDiscoveredRank(Integer discoveredRank) {
+        this.discoveredRank = discoveredRank;
+    }
+
+    @Override
+    public String toString() {
+        return "RankedUser{" +
+                "profileId=" + profileId +
+                ", screenName='" + screenName + '\'' +
+                ", pagerank=" + pagerank +
+                ", currentRank=" + currentRank +
+                '}';
+    }
+}
@@ -0,0 +1,266 @@
+package org.kbastani.user;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kbastani.math.RunningStatistics;
+import org.neo4j.ogm.model.Result;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Recomputes the sentiment statistics of every discovered user from their HAS_ENTITY relationships, for example
+ * after the NLP model changed. The users are visited in chunks of {@code sentiment.recompute.chunk-size} users in
+ * order of profile id, and the sentiments of a chunk are read one row per relationship and folded into a
+ * {@link RunningStatistics} accumulator per user in a single pass, so the heap that a recompute needs only depends on
+ * the size of a chunk and never on the size of the graph. The statistics are written back in UNWIND statements of
+ * at most {@code sentiment.recompute.write-batch-size} users.
+ * <p>
+ * The progress of a recompute is kept on a {@code (:SentimentRecompute)} node as the last profile id that was
+ * written, so a recompute that was interrupted by a restart resumes after the last chunk that it completed.
+ *
+ * @author kbastani
+ */
+@Service
+public class SentimentRecompute {
+
+    private static final String START = "MERGE (job:SentimentRecompute { name: 'users' })\n" +
+            "SET job.cursor = {cursor}, job.processed = 0, job.startedAt = timestamp(), job.finishedAt = null\n" +
+            "WITH job\n" +
+            "MATCH (user:User) WHERE (user)-[:NEXT]-()\n" +
+            "WITH job, count(user) as total\n" +
+            "SET job.total = total";
+
+    private static final String READ_PROGRESS = "MATCH (job:SentimentRecompute { name: 'users' })\n" +
+            "RETURN job.cursor as cursor, job.processed as processed, job.total as total,\n" +
+            "job.startedAt as startedAt, job.finishedAt as finishedAt";
+
+    private static final String READ_CHUNK = "MATCH (user:User) WHERE user.profileId > {cursor} AND " +
+            "(user)-[:NEXT]-()\n" +
+            "WITH user ORDER BY user.profileId LIMIT {limit}\n" +
+            "OPTIONAL MATCH (user)-[:TWEETED]->(:Tweet)-[r:HAS_ENTITY]->(:TextEntity)\n" +
+            "RETURN user.profileId as profileId, coalesce(user.sentimentCount, 0) as previousCount,\n" +
+            "r.sentiment as sentiment\n" +
+            "ORDER BY profileId";
+
+    // A user that was merged by an activity scan after its chunk was read is skipped, and the chunk is read again
+    private static final String WRITE_STATISTICS = "UNWIND {rows} as row\n" +
+            "MATCH (user:User { profileId: row.profileId })\n" +
+            "CALL apoc.lock.nodes([user])\n" +
+            "WITH user, row WHERE coalesce(user.sentimentCount, 0) = row.previousCount\n" +
+            "SET user.sentimentCount = row.count, user.sentimentMean = row.mean, user.sentimentM2 = row.m2,\n" +
+            "\tuser.averageSentiment = row.average, user.stdSentiment = row.std,\n" +
+            "\tuser.cumulativeSentiment = row.cumulative\n" +
+            "RETURN count(user) as written";
+
+    // The progress is only advanced while the recompute was not restarted in the meantime
+    private static final String ADVANCE = "MATCH (job:SentimentRecompute { name: 'users' })\n" +
+            "WHERE job.startedAt = {startedAt}\n" +
+            "SET job.cursor = {cursor}, job.processed = job.processed + {processed},\n" +
+            "job.finishedAt = CASE WHEN {finished} THEN timestamp() ELSE null END\n" +
+            "RETURN count(job) as advanced";
+
+    private final Log log = LogFactory.getLog(SentimentRecompute.class);
+    private final SessionFactory sessionFactory;
+    private final int chunkSize;
+    private final int batchSize;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @Autowired
+    public SentimentRecompute(SessionFactory sessionFactory,
+                              @Value("${sentiment.recompute.chunk-size:100}") int chunkSize,
+                              @Value("${sentiment.recompute.write-batch-size:1000}") int batchSize) {
+        this.sessionFactory = sessionFactory;
+        this.chunkSize = chunkSize;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Starts a new recompute from the first user, replacing the progress of any previous recompute. The users are
+     * recomputed by {@link #resume()}.
+     */
+    public void start() {
+        sessionFactory.openSession().query(START, Collections.singletonMap("cursor", Long.MIN_VALUE));
+        log.info("Sentiment recompute started");
+    }
+
+    /**
+     * @return the progress of the last recompute, or an empty map if a recompute was never started
+     */
+    public Map<String, Object> getProgress() {
+        Iterator<Map<String, Object>> rows = sessionFactory.openSession()
+                .query(READ_PROGRESS, Collections.emptyMap(), true).queryResults().iterator();
+        return rows.hasNext() ? new LinkedHashMap<>(rows.next()) : Collections.emptyMap();
+    }
+
+    /**
+     * Recomputes the users after the cursor of an unfinished recompute, chunk by chunk, until every user was
+     * recomputed. Returns immediately if there is no unfinished recompute or if one is already running in this
+     * process.
+     */
+    public void resume() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Map<String, Object> progress = getProgress();
+
+            if (progress.isEmpty() || progress.get("finishedAt") != null) {
+                return;
+            }
+
+            Session session = sessionFactory.openSession();
+            long cursor = ((Number) progress.get("cursor")).longValue();
+            long processed = ((Number) progress.get("processed")).longValue();
+            Number total = (Number) progress.get("total");
+            Object startedAt = progress.get("startedAt");
+            long start = System.currentTimeMillis();
+            Chunk chunk;
+
+            log.info(String.format("Sentiment recompute resumed after profile id %s, %s of %s users processed",
+                    cursor, processed, total));
+
+            do {
+                chunk = recompute(session, cursor);
+
+                if (chunk.skipped > 0) {
+                    log.info(String.format("%s users were scanned during the sentiment recompute of their chunk, " +
+                            "recomputing the chunk again", chunk.skipped));
+                    continue;
+                }
+
+                if (chunk.users > 0) {
+                    cursor = chunk.lastProfileId;
+                    processed += chunk.users;
+                }
+
+                Map<String, Object> params = new HashMap<>(4);
+                params.put("startedAt", startedAt);
+                params.put("cursor", cursor);
+                params.put("processed", chunk.users);
+                params.put("finished", chunk.users < chunkSize);
+
+                if (count(session.query(ADVANCE, params), "advanced") == 0) {
+                    log.info("Sentiment recompute was restarted and is resumed from its new start on the next run");
+                    return;
+                }
+
+                log.info(String.format("Sentiment recompute processed %s of %s users", processed, total));
+            } while (chunk.users == chunkSize || chunk.skipped > 0);
+
+            log.info(String.format("Sentiment recompute finished after %s users in %sms", processed,
+                    System.currentTimeMillis() - start));
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Recomputes the chunk of users after the cursor
+     */
+    private Chunk recompute(Session session, long cursor) {
+        Map<String, Object> params = new HashMap<>(2);
+        params.put("cursor", cursor);
+        params.put("limit", chunkSize);
+        Result result = session.query(READ_CHUNK, params, true);
+
+        return Chunk.read(result.queryResults(), batchSize, rows -> flush(session, rows));
+    }
+
+    private static int flush(Session session, List<Map<String, Object>> rows) {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        return rows.size() - (int) count(session.query(WRITE_STATISTICS, Collections.singletonMap("rows", rows)),
+                "written");
+    }
+
+    private static long count(Result result, String column) {
+        Iterator<Map<String, Object>> rows = result.queryResults().iterator();
+        return rows.hasNext() ? ((Number) rows.next().get(column)).longValue() : 0;
+    }
+
+    /**
+     * Writes a batch of statistics rows, which must not be retained, and returns the number of users that were
+     * skipped
+     */
+    interface Writer {
+        int write(List<Map<String, Object>> rows);
+    }
+
+    /**
+     * The outcome of recomputing a chunk of users
+     */
+    static class Chunk {
+        int users;
+        int skipped;
+        long lastProfileId;
+
+        /**
+         * Folds the sentiment rows of a chunk, which are ordered by profile id, into the statistics of each user,
+         * and writes the statistics in batches as the users are completed
+         */
+        static Chunk read(Iterable<Map<String, Object>> sentiments, int batchSize, Writer writer) {
+            Chunk chunk = new Chunk();
+            RunningStatistics statistics = new RunningStatistics();
+            List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+            long previousCount = 0;
+
+            for (Map<String, Object> sentiment : sentiments) {
+                long profileId = ((Number) sentiment.get("profileId")).longValue();
+
+                if (chunk.users == 0 || profileId != chunk.lastProfileId) {
+                    if (chunk.users > 0) {
+                        rows.add(row(chunk.lastProfileId, previousCount, statistics));
+                        if (rows.size() == batchSize) {
+                            chunk.skipped += writer.write(rows);
+                            rows.clear();
+                        }
+                    }
+
+                    chunk.users++;
+                    chunk.lastProfileId = profileId;
+                    previousCount = ((Number) sentiment.get("previousCount")).longValue();
+                    statistics.clear();
+                }
+
+                Object value = sentiment.get("sentiment");
+                if (value != null) {
+                    statistics.add(((Number) value).doubleValue());
+                }
+            }
+
+            if (chunk.users > 0) {
+                rows.add(row(chunk.lastProfileId, previousCount, statistics));
+            }
+            chunk.skipped += writer.write(rows);
+
+            return chunk;
+        }
+
+        /**
+         * The statistics of a user, where a user without entity sentiments has no average, standard deviation, or
+         * cumulative sentiment, like a user that was never analyzed
+         */
+        private static Map<String, Object> row(long profileId, long previousCount, RunningStatistics statistics) {
+            boolean analyzed = statistics.getCount() > 0;
+            Map<String, Object> row = new HashMap<>(10);
+            row.put("profileId", profileId);
+            row.put("previousCount", previousCount);
+            row.put("count", statistics.getCount());
+            row.put("mean", statistics.getMean());
+            row.put("m2", statistics.getM2());
+            row.put("average", analyzed ? statistics.getMean() : null);
+            row.put("std", analyzed ? statistics.getStandardDeviation() : null);
+            row.put("cumulative", analyzed ? statistics.getSum() : null);
+            return row;
+        }
+    }
+}
@@ -48,6 +48,8 @@ public class User implements Serializable {
     private Integer discoveredRank;
     private Long lastActivityScan;
     private Long lastImportedTweetId;
+    private Long lastSeenTweetId;
+    private Boolean timelineBackfilled;
     private Double averageSentiment;
     private Double stdSentiment;
     private Double cumulativeSentiment;
@@ -68,6 +70,15 @@ public class User implements Serializable {
     }
 
     public User(twitter4j.User twitterProfile) {
+        setProfile(twitterProfile);
+    }
+
+    /**
+     * Copies the profile fields of a Twitter user, leaving the fields that are computed by the crawler unchanged
+     *
+     * @param twitterProfile is the profile returned by the Twitter API
+     */
+    public void setProfile(twitter4j.User twitterProfile) {
         this.profileId = twitterProfile.getId();
         this.createdDate = twitterProfile.getCreatedAt();
         this.screenName = twitterProfile.getScreenName();
@@ -256,6 +267,22 @@ public class User implements Serializable {
         this.lastImportedTweetId = lastImportedTweetId;
     }
 
+    public Long getLastSeenTweetId() {
+        return lastSeenTweetId;
+    }
+
+    public void setLastSeenTweetId(Long lastSeenTweetId) {
+        this.lastSeenTweetId = lastSeenTweetId;
+    }
+
+    public Boolean getTimelineBackfilled() {
+        return timelineBackfilled;
+    }
+
+    public void setTimelineBackfilled(Boolean timelineBackfilled) {
+        this.timelineBackfilled = timelineBackfilled;
+    }
+
     public Double getAverageSentiment() {
         return averageSentiment;
     }
@@ -305,6 +332,8 @@ public class User implements Serializable {
                 ", discoveredRank=" + discoveredRank +
                 ", lastActivityScan=" + lastActivityScan +
                 ", lastImportedTweetId=" + lastImportedTweetId +
+                ", lastSeenTweetId=" + lastSeenTweetId +
+                ", timelineBackfilled=" + timelineBackfilled +
                 ", averageSentiment=" + averageSentiment +
                 ", stdSentiment=" + stdSentiment +
                 ", cumulativeSentiment=" + cumulativeSentiment +
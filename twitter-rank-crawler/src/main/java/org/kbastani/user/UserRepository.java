@@ -3,9 +3,10 @@ package org.kbastani.user;
 import org.springframework.data.neo4j.annotation.Query;
 import org.springframework.data.neo4j.repository.Neo4jRepository;
 import org.springframework.data.repository.query.Param;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.data.rest.core.annotation.RestResource;
 
-import java.util.Set;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * The {@link User} repository provides custom Cypher queries as repository search operations
@@ -21,97 +22,204 @@ public interface UserRepository extends Neo4jRepository<User, Long> {
     @Query("MATCH (user:User { profileId: {profileId} }) RETURN id(user) as id")
     Long getUserIdByProfileId(@Param("profileId") Long profileId);
 
+    /**
+     * Finds the first page of the leader board. Users with equal PageRanks are ordered by profile id, and only the
+     * fields of a {@link RankedUser} are returned, with no relationships loaded.
+     *
+     * @param limit is the maximum number of users on the page
+     */
+    @RestResource(exported = false)
     @Query("MATCH (user:User) WHERE exists(user.pagerank) AND exists(user.screenName) AND coalesce(user.imported, false) = true\n" +
             "WITH user\n" +
-            "ORDER BY user.pagerank DESC\n" +
-            "SKIP {skip}\n" +
+            "ORDER BY user.pagerank DESC, user.profileId\n" +
             "LIMIT {limit}\n" +
-            "RETURN user")
-    Set<User> findRankedUsers(@Param("skip") Integer skip, @Param("limit") Integer limit);
+            "RETURN user.profileId as profileId, user.screenName as screenName, user.name as name,\n" +
+            "\tuser.profileImageUrl as profileImageUrl, user.followerCount as followerCount,\n" +
+            "\tuser.followsCount as followsCount, user.pagerank as pagerank, user.currentRank as currentRank,\n" +
+            "\tuser.previousRank as previousRank, user.discoveredRank as discoveredRank")
+    List<RankedUser> findTopRankedUsers(@Param("limit") Integer limit);
+
+    /**
+     * Finds a page of the leader board with keyset pagination. The page starts after the user with the given
+     * PageRank and profile id, which are the last user of the previous page. Users with equal PageRanks are ordered
+     * by profile id, so every user appears on exactly one page. The users are sought with a range of the
+     * {@code :User(pagerank)} index that starts at the PageRank of the previous page, and the users with an equal
+     * PageRank that were already on the previous page are filtered from the range.
+     *
+     * @param pagerank  is the PageRank of the last user of the previous page
+     * @param profileId is the profile id of the last user of the previous page
+     * @param limit     is the maximum number of users on the page
+     */
+    @RestResource(exported = false)
+    @Query("MATCH (user:User) USING INDEX user:User(pagerank)\n" +
+            "WHERE user.pagerank <= {pagerank}\n" +
+            "AND (user.pagerank < {pagerank} OR user.profileId > {profileId})\n" +
+            "AND exists(user.screenName) AND coalesce(user.imported, false) = true\n" +
+            "WITH user\n" +
+            "ORDER BY user.pagerank DESC, user.profileId\n" +
+            "LIMIT {limit}\n" +
+            "RETURN user.profileId as profileId, user.screenName as screenName, user.name as name,\n" +
+            "\tuser.profileImageUrl as profileImageUrl, user.followerCount as followerCount,\n" +
+            "\tuser.followsCount as followsCount, user.pagerank as pagerank, user.currentRank as currentRank,\n" +
+            "\tuser.previousRank as previousRank, user.discoveredRank as discoveredRank")
+    List<RankedUser> findRankedUsersAfter(@Param("pagerank") Double pagerank, @Param("profileId") Long profileId,
+                                          @Param("limit") Integer limit);
 
-    @Query("MATCH (user:User)-[:TWEETED]->(tweet:Tweet),\n" +
-            "\t(tweet)-[entity:HAS_ENTITY]->(:TextEntity)\n" +
-            "WHERE (user)-[:NEXT]-()\n" +
-            "RETURN user.profileId as userProfileId, COLLECT(TOFLOAT(entity.sentiment)) as sentiment")
-    Set<SentimentResult> findUserSentimentResults();
+    /**
+     * The {@code users/search/findRankedUsers} search of the REST repository, which is kept for the clients that
+     * page the leader board through it. It is backed by the same keyset seek as
+     * {@link #findRankedUsersAfter(Double, Long, Integer)}, and starts at the top of the leader board when no keys
+     * are given. The {@code skip} parameter of the former offset search is no longer read, so clients should page
+     * with the PageRank and profile id of the last user of the previous page, or move to {@code /v1/users/ranked}.
+     *
+     * @param pagerank  is the PageRank of the last user of the previous page, or null for the first page
+     * @param profileId is the profile id of the last user of the previous page, or null for the first page
+     * @param limit     is the maximum number of users on the page
+     * @deprecated use {@code /v1/users/ranked}, which returns the keys of the next page
+     */
+    @Deprecated
+    @Query("MATCH (user:User) USING INDEX user:User(pagerank)\n" +
+            "WHERE user.pagerank <= coalesce({pagerank}, 1.7976931348623157E308)\n" +
+            "AND ({pagerank} IS NULL OR user.pagerank < {pagerank} OR user.profileId > {profileId})\n" +
+            "AND exists(user.screenName) AND coalesce(user.imported, false) = true\n" +
+            "WITH user\n" +
+            "ORDER BY user.pagerank DESC, user.profileId\n" +
+            "LIMIT {limit}\n" +
+            "RETURN user")
+    List<User> findRankedUsers(@Param("pagerank") Double pagerank, @Param("profileId") Long profileId,
+                               @Param("limit") Integer limit);
 
     @Query("MATCH (user:User)-[:NEXT]-(), (user)-[:TWEETED]->()-[r:HAS_ENTITY]->(e:TextEntity)\n" +
             "WHERE user.profileId = {profileId}\n" +
             "RETURN user.profileId as userProfileId, COLLECT(r.sentiment) as sentiment")
     SentimentResult getUserSentiment(@Param("profileId") Long profileId);
 
-    @Query("FOREACH(x in {users} | MERGE (user:User { profileId: x.profileId })\n" +
-            "SET user.averageSentiment = x.averageSentiment\n" +
-            "SET user.stdSentiment = x.stdSentiment\n" +
-            "SET user.cumulativeSentiment = x.cumulativeSentiment)")
-    void updateUserStatistics(@Param("users") Set<User> users);
-
-    @Query("MATCH (a:User)<-[r:FOLLOWS]-(b)\n" +
-            "WHERE NOT exists(a.screenName)\n" +
-            "WITH a, count(r) as weight\n" +
-            "WHERE weight > 2\n" +
-            "WITH a, weight\n" +
-            "ORDER BY weight DESC\n" +
-            "LIMIT 1\n" +
-            "WITH a\n" +
-            "RETURN a")
-    User findNextUserToCrawl();
-
-    @Query("MATCH (user:User) WHERE exists(user.pagerank) AND NOT exists(user.screenName)\n" +
-            "WITH user\n" +
-            "ORDER BY user.pagerank DESC\n" +
-            "LIMIT 1\n" +
+    /**
+     * Merges the sentiment statistics of a batch of entity sentiments into the running statistics of a user, with
+     * the parallel update of Chan et al. The count, mean and M2 of the user are kept in properties that are not
+     * mapped to the {@link User} entity, so that saving a stale entity never overwrites them, and the average,
+     * standard deviation and cumulative sentiment are derived from them. The user is locked for the update, so
+     * concurrent batches are merged one after the other.
+     *
+     * @param profileId is the profile id of the user
+     * @param count     is the number of sentiments in the batch
+     * @param mean      is the mean of the sentiments in the batch
+     * @param m2        is the sum of squared differences from the mean of the sentiments in the batch
+     */
+    @RestResource(exported = false)
+    @Query("MATCH (user:User { profileId: {profileId} })\n" +
+            "CALL apoc.lock.nodes([user])\n" +
+            "WITH user, coalesce(user.sentimentCount, 0) as n1, coalesce(user.sentimentMean, 0.0) as m1,\n" +
+            "\tcoalesce(user.sentimentM2, 0.0) as q1\n" +
+            "WITH user, n1, n1 + {count} as n, m1, q1, {mean} - m1 as delta\n" +
+            "WITH user, n, m1 + delta * {count} / toFloat(n) as mean,\n" +
+            "\tq1 + {m2} + delta * delta * n1 * {count} / toFloat(n) as m2\n" +
+            "SET user.sentimentCount = n, user.sentimentMean = mean, user.sentimentM2 = m2,\n" +
+            "\tuser.averageSentiment = mean, user.stdSentiment = sqrt(m2 / n), user.cumulativeSentiment = mean * n")
+    void mergeSentimentStatistics(@Param("profileId") Long profileId, @Param("count") Long count,
+                                  @Param("mean") Double mean, @Param("m2") Double m2);
+
+    /**
+     * Finds the undiscovered users that the crawl frontier is rebuilt from, in order of PageRank and then number of
+     * followers. The number of followers is read from the relationship count of each user rather than aggregated.
+     *
+     * @param limit is the maximum number of users to return
+     */
+    @RestResource(exported = false)
+    @Query("MATCH (user:User) WHERE NOT exists(user.screenName) AND NOT coalesce(user.unavailable, false)\n" +
+            "WITH user, size((user)<-[:FOLLOWS]-()) as followers\n" +
+            "WHERE exists(user.pagerank) OR followers > 2\n" +
+            "WITH user.profileId as profileId, coalesce(user.pagerank, -1.0) as pagerank, followers\n" +
+            "ORDER BY pagerank DESC, followers DESC\n" +
+            "LIMIT {limit}\n" +
+            "RETURN profileId, pagerank, followers")
+    List<CrawlCandidate> findCrawlCandidates(@Param("limit") Integer limit);
+
+    @RestResource(exported = false)
+    @Query("MATCH (user:User) WHERE user.profileId IN {profileIds}\n" +
             "RETURN user")
-    User findRankedUserToCrawl();
+    List<User> findUsersByProfileIds(@Param("profileIds") Collection<Long> profileIds);
+
+    /**
+     * Marks users that the Twitter API did not return, because they are suspended or deleted, so that they are
+     * no longer picked for discovery
+     */
+    @RestResource(exported = false)
+    @Query("MATCH (user:User) WHERE user.profileId IN {profileIds}\n" +
+            "SET user.unavailable = true")
+    void markUsersUnavailable(@Param("profileIds") Collection<Long> profileIds);
 
+    /**
+     * Finds the ranked users whose activity is scanned, which the activity scan scheduler is loaded from
+     */
+    @RestResource(exported = false)
     @Query("MATCH (user:User) WHERE exists(user.pagerank) AND exists(user.screenName) AND (user)-[:NEXT]-()\n" +
-            "WITH user\n" +
-            "ORDER BY coalesce(user.lastActivityScan, 0)\n" +
-            "LIMIT 1\n" +
-            "RETURN user")
-    User findNextUserActivityScan();
+            "RETURN user.profileId as profileId, user.lastActivityScan as lastActivityScan,\n" +
+            "user.activityScanInterval as activityScanInterval")
+    List<ActivityScanCandidate> findActivityScanCandidates();
 
     /**
-     * Initialize the user.lastPageRank value to the current user.pagerank
+     * Stores the interval that the activity scans of a user were adapted to. The property is not mapped on the
+     * {@link User} entity, so that saving the user does not overwrite it.
      */
-    @Query("MATCH (user:User) WHERE exists(user.pagerank) AND exists(user.screenName) AND NOT exists(user.lastPageRank)\n" +
-            "WITH collect(user) as users\n" +
-            "FOREACH(x in users | \n" +
-            "SET x.lastPageRank = toFloat(x.pagerank))")
-    void setLastPageRank();
+    @RestResource(exported = false)
+    @Query("MATCH (user:User { profileId: {profileId} })\n" +
+            "SET user.activityScanInterval = {interval}")
+    void updateActivityScanInterval(@Param("profileId") Long profileId, @Param("interval") Long interval);
 
     /**
-     * Updates the current rank and last rank of each ranked user. This query allows us to see how much a
-     * user's rank has increased or decreased from the last PageRank job.
+     * Appends users to the linked list of users in the order that they are discovered. The list is anchored by a
+     * single (:DiscoveryChain) node, which counts the users in the list and points at the last user with a TAIL
+     * relationship, so that an append only touches the tail and the new users. The chain node is locked for the
+     * duration of the append, and users that already have a discovered rank are not appended again.
+     *
+     * @param profileIds are the profile ids of the users to append, in the order that they were discovered
      */
-    @Query("MATCH (user:User) WHERE exists(user.pagerank) AND exists(user.screenName) AND exists(user.lastPageRank)\n" +
-            "WITH user\n" +
-            "ORDER BY user.pagerank DESC\n" +
-            "WITH collect(user) as users\n" +
-            "UNWIND range(0,size(users)-1) AS idx\n" +
-            "WITH users[idx] AS user, 1 + idx AS currentRank\n" +
-            "WITH user, coalesce(user.currentRank, 0) as previousRank, currentRank\n" +
-            "WITH collect({ user: user, previousRank: previousRank, currentRank: currentRank }) as results\n" +
-            "FOREACH (x in [y IN results WHERE y.user.pagerank <> y.user.lastPageRank | y] | \n" +
-            "\tSET x.user.previousRank = x.previousRank\n" +
-            "\tSET x.user.currentRank = x.currentRank\n" +
-            "\tSET x.user.lastPageRank = x.user.pagerank)")
-    void updateUserCurrentRank();
+    @RestResource(exported = false)
+    @Query("MERGE (chain:DiscoveryChain { name: 'users' })\n" +
+            "WITH chain\n" +
+            "CALL apoc.lock.nodes([chain])\n" +
+            "OPTIONAL MATCH (chain)-[tail:TAIL]->(last:User)\n" +
+            "WITH chain, tail, last\n" +
+            "UNWIND range(0, size({profileIds}) - 1) as idx\n" +
+            "MATCH (user:User { profileId: {profileIds}[idx] }) WHERE NOT exists(user.discoveredRank)\n" +
+            "WITH chain, tail, last, user, idx ORDER BY idx\n" +
+            "WITH chain, tail, last, collect(DISTINCT user) as users, coalesce(chain.size, 0) as offset\n" +
+            "WHERE size(users) > 0\n" +
+            "FOREACH (idx IN range(0, size(users) - 1) | FOREACH (user IN [users[idx]] |\n" +
+            "\tSET user.discoveredRank = offset + idx + 1))\n" +
+            "FOREACH (idx IN range(0, size(users) - 2) |\n" +
+            "\tFOREACH (s1 IN [users[idx]] | FOREACH (s2 IN [users[idx + 1]] | MERGE (s1)-[:NEXT]->(s2))))\n" +
+            "FOREACH (s1 IN CASE WHEN last IS NULL THEN [] ELSE [last] END | FOREACH (s2 IN [users[0]] |\n" +
+            "\tMERGE (s1)-[:NEXT]->(s2)))\n" +
+            "DELETE tail\n" +
+            "WITH chain, users[size(users) - 1] as newTail, offset + size(users) as chainSize\n" +
+            "MERGE (chain)-[:TAIL]->(newTail)\n" +
+            "SET chain.size = chainSize")
+    void appendToDiscoveryChain(@Param("profileIds") List<Long> profileIds);
 
+    /**
+     * Points the discovery chain at the user with the highest discovered rank, when the chain has no tail. This
+     * adopts a list of users that was linked before the chain node existed.
+     */
+    @RestResource(exported = false)
+    @Query("MERGE (chain:DiscoveryChain { name: 'users' })\n" +
+            "WITH chain WHERE NOT (chain)-[:TAIL]->()\n" +
+            "MATCH (user:User) WHERE exists(user.discoveredRank)\n" +
+            "WITH chain, user ORDER BY user.discoveredRank DESC LIMIT 1\n" +
+            "MERGE (chain)-[:TAIL]->(user)\n" +
+            "SET chain.size = user.discoveredRank")
+    void adoptDiscoveryChainTail();
 
     /**
-     * Updates a linked list of users in the order that they are discovered.
+     * Finds the users that were discovered but never appended to the discovery chain, such as when a crawler
+     * stopped between saving a user and appending it, in the order that they were discovered
      */
-    @Transactional
-    @Query("MATCH (user:User) WHERE exists(user.discoveredTime)\n" +
+    @RestResource(exported = false)
+    @Query("MATCH (user:User) WHERE exists(user.discoveredTime) AND NOT exists(user.discoveredRank)\n" +
             "WITH user ORDER BY user.discoveredTime\n" +
-            "WITH collect(user) as users\n" +
-            "UNWIND range(0,size(users)-2) as idx\n" +
-            "WITH users[idx] AS s1, users[idx+1] AS s2, idx as n1\n" +
-            "MERGE (s1)-[:NEXT]->(s2)\n" +
-            "SET s1.discoveredRank = n1 + 1\n" +
-            "SET s2.discoveredRank = n1 + 2")
-    void updateDiscoveryChain();
+            "RETURN user.profileId")
+    List<Long> findUnchainedUsers();
 
     @Query("MATCH (u:User)\n" +
             "WITH collect(u) as nodes\n" +
@@ -119,4 +227,85 @@ public interface UserRepository extends Neo4jRepository<User, Long> {
             "WITH node, score\n" +
             "SET node.pagerank = score")
     void updatePageRankForFollowGraph();
+
+    /**
+     * Runs one batch of incremental PageRank on the FOLLOWS graph. Up to {@code limit} of the users whose rank or
+     * out-degree changed are the sources, and the rank of every user that they follow is recomputed from its
+     * followers using the same damping factor as apoc.algo.pageRank. Targets whose rank changed by more than
+     * epsilon are marked as sources for a later batch. Bounding the sources keeps the transaction of a batch small
+     * however many users were marked.
+     *
+     * @param epsilon is the smallest change in rank that is propagated to the users that a user follows
+     * @param limit   is the maximum number of sources of the batch
+     * @return the number of sources that were propagated, or null if no user was marked
+     */
+    @RestResource(exported = false)
+    @Query("MATCH (source:User) WHERE exists(source.pagerankChangedAt)\n" +
+            "WITH source LIMIT {limit}\n" +
+            "REMOVE source.pagerankChangedAt\n" +
+            "SET source.pagerank = coalesce(source.pagerank, 0.15)\n" +
+            "WITH collect(source) as sources\n" +
+            "UNWIND sources as source\n" +
+            "OPTIONAL MATCH (source)-[:FOLLOWS]->(target:User)\n" +
+            "WITH size(sources) as propagated, collect(DISTINCT target) as targets\n" +
+            "WITH propagated, [target IN targets | { target: target, score: 0.15 + 0.85 *\n" +
+            "\treduce(s = 0.0, c IN [(follower:User)-[:FOLLOWS]->(target) |\n" +
+            "\t\tcoalesce(follower.pagerank, 0.15) / size((follower)-[:FOLLOWS]->())] | s + c) }] as changes\n" +
+            "FOREACH (change IN changes | FOREACH (target IN [change.target] |\n" +
+            "\tSET target.pagerankChangedAt = CASE WHEN abs(change.score - coalesce(target.pagerank, 0.0)) > {epsilon}\n" +
+            "\t\tTHEN timestamp() ELSE target.pagerankChangedAt END\n" +
+            "\tSET target.pagerank = change.score))\n" +
+            "RETURN propagated")
+    Long updateIncrementalPageRankForFollowGraph(@Param("epsilon") Double epsilon,
+                                                 @Param("limit") Integer limit);
+
+    /**
+     * Clears the incremental PageRank changes that were made before a full PageRank job started, since the full
+     * job has already accounted for them.
+     *
+     * @param time is the time that the full PageRank job started
+     */
+    @RestResource(exported = false)
+    @Query("MATCH (user:User) WHERE user.pagerankChangedAt <= {time}\n" +
+            "REMOVE user.pagerankChangedAt")
+    void clearPageRankChanges(@Param("time") Long time);
+
+    /**
+     * @return the current time of the database server, which is the clock used to mark PageRank changes
+     */
+    @RestResource(exported = false)
+    @Query("RETURN timestamp()")
+    Long getDatabaseTime();
+
+    /**
+     * Claims a user for import by the crawler instance {@code owner}, unless another instance holds an unexpired
+     * claim. The user node is locked before the claim is read, so that only one of two concurrent claims succeeds.
+     *
+     * @param profileId is the profile id of the user to import
+     * @param owner     is the id of the crawler instance that claims the user
+     * @param duration  is the number of milliseconds after which an unreleased claim expires
+     * @return zero if the claim was acquired, or the number of milliseconds until the claim of the other instance
+     * expires
+     */
+    @RestResource(exported = false)
+    @Query("MERGE (user:User { profileId: {profileId} })\n" +
+            "WITH user\n" +
+            "CALL apoc.lock.nodes([user])\n" +
+            "WITH user, timestamp() as time\n" +
+            "WITH user, time,\n" +
+            "\tcoalesce(user.importLeaseUntil, 0) < time OR user.importLeaseOwner = {owner} as acquired\n" +
+            "FOREACH (claimed IN CASE WHEN acquired THEN [user] ELSE [] END |\n" +
+            "\tSET claimed.importLeaseOwner = {owner}, claimed.importLeaseUntil = time + {duration})\n" +
+            "RETURN CASE WHEN acquired THEN 0 ELSE user.importLeaseUntil - time END")
+    Long acquireImportLease(@Param("profileId") Long profileId, @Param("owner") String owner,
+                            @Param("duration") Long duration);
+
+    /**
+     * Releases a claim on a user that is held by the crawler instance {@code owner}
+     */
+    @RestResource(exported = false)
+    @Query("MATCH (user:User { profileId: {profileId} })\n" +
+            "WHERE user.importLeaseOwner = {owner}\n" +
+            "REMOVE user.importLeaseOwner, user.importLeaseUntil")
+    void releaseImportLease(@Param("profileId") Long profileId, @Param("owner") String owner);
 }
\ No newline at end of file
@@ -1,20 +1,25 @@
 package org.kbastani.web;
 
 import org.kbastani.tweet.TwitterService;
+import org.kbastani.user.RankedUser;
+import org.kbastani.user.SentimentRecompute;
 import org.kbastani.user.User;
+import org.kbastani.user.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.util.Optional;
+import java.util.*;
 
 /**
- * Provides a single REST endpoint for seeding users to crawl on Twitter. Automated crawling of Twitter users requires
- * three seed users as input.
+ * Provides a REST endpoint for seeding users to crawl on Twitter, and serves and streams the leader board of the
+ * dashboard.
+ * Automated crawling of Twitter users requires three seed users as input.
  *
  * @author kbastani
  */
@@ -22,11 +27,23 @@ import java.util.Optional;
 @RequestMapping("v1")
 public class ApiController {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final TwitterService twitterService;
+    private final LeaderboardCache leaderboardCache;
+    private final LeaderboardStream leaderboardStream;
+    private final UserRepository userRepository;
+    private final SentimentRecompute sentimentRecompute;
 
     @Autowired
-    public ApiController(TwitterService twitterService) {
+    public ApiController(TwitterService twitterService, LeaderboardCache leaderboardCache,
+                         LeaderboardStream leaderboardStream, UserRepository userRepository,
+                         SentimentRecompute sentimentRecompute) {
         this.twitterService = twitterService;
+        this.leaderboardCache = leaderboardCache;
+        this.leaderboardStream = leaderboardStream;
+        this.userRepository = userRepository;
+        this.sentimentRecompute = sentimentRecompute;
     }
 
     @RequestMapping(path = "user/{screenName}", method = RequestMethod.GET)
@@ -34,4 +51,91 @@ public class ApiController {
         return Optional.of(ResponseEntity.ok(twitterService.discoverUserByScreenName(screenName)))
                 .orElse(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
     }
+
+    /**
+     * Serves the materialized leader board from memory. A client that already has the current snapshot receives a
+     * 304 response without a body.
+     */
+    @RequestMapping(path = "leaderboard", method = RequestMethod.GET)
+    public ResponseEntity<byte[]> getLeaderboard(
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        LeaderboardCache.Snapshot snapshot = leaderboardCache.getSnapshot();
+
+        if (ifNoneMatch != null && Arrays.stream(ifNoneMatch.split(","))
+                .map(tag -> tag.trim().replaceFirst("^W/", ""))
+                .anyMatch(tag -> tag.equals(snapshot.getETag()) || tag.equals("*"))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(snapshot.getETag()).build();
+        }
+
+        return ResponseEntity.ok()
+                .eTag(snapshot.getETag())
+                .cacheControl(CacheControl.noCache())
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(snapshot.getBody());
+    }
+
+    /**
+     * Pages through the leader board with keyset pagination. The response contains the users of the page, and the
+     * PageRank and profile id of its last user as the {@code next} keys to request the following page with, which
+     * are null on the last page. The cost of a page does not depend on how deep it is in the leader board.
+     *
+     * @param pagerank  is the PageRank of the last user of the previous page, or null for the first page
+     * @param profileId is the profile id of the last user of the previous page, or null for the first page
+     * @param limit     is the number of users on the page, up to 1000
+     */
+    @RequestMapping(path = "users/ranked", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> getRankedUsers(
+            @RequestParam(name = "pagerank", required = false) Double pagerank,
+            @RequestParam(name = "profileId", required = false) Long profileId,
+            @RequestParam(name = "limit", defaultValue = "100") Integer limit) {
+        if ((pagerank == null) != (profileId == null) || limit < 1) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        int size = Math.min(limit, MAX_PAGE_SIZE);
+        List<RankedUser> users = pagerank == null ? userRepository.findTopRankedUsers(size) :
+                userRepository.findRankedUsersAfter(pagerank, profileId, size);
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("users", users);
+
+        if (users.size() == size) {
+            RankedUser last = users.get(users.size() - 1);
+            Map<String, Object> next = new LinkedHashMap<>();
+            next.put("pagerank", last.getPagerank());
+            next.put("profileId", last.getProfileId());
+            page.put("next", next);
+        } else {
+            page.put("next", null);
+        }
+
+        return ResponseEntity.ok(page);
+    }
+
+    /**
+     * Streams the leader board as server-sent events, starting with the current snapshot and followed by the changes
+     * of each refresh
+     */
+    @RequestMapping(path = "leaderboard/stream", method = RequestMethod.GET,
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamLeaderboard() {
+        return leaderboardStream.subscribe(leaderboardCache::getSnapshot);
+    }
+
+    /**
+     * Starts a recompute of the sentiment statistics of every user from their entity sentiments, which is run in
+     * the background by the crawler and resumed after a restart
+     */
+    @RequestMapping(path = "sentiment/recompute", method = RequestMethod.POST)
+    public ResponseEntity<Map<String, Object>> startSentimentRecompute() {
+        sentimentRecompute.start();
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(sentimentRecompute.getProgress());
+    }
+
+    /**
+     * Reports the progress of the last sentiment recompute
+     */
+    @RequestMapping(path = "sentiment/recompute", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> getSentimentRecompute() {
+        return ResponseEntity.ok(sentimentRecompute.getProgress());
+    }
 }
@@ -0,0 +1,125 @@
+package org.kbastani.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kbastani.user.RankedUser;
+import org.kbastani.user.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Holds a materialized snapshot of the top {@code leaderboard.size} users of the leader board, as
+ * {@link RankedUser} projections in leader board order, so that the dashboard is served from memory instead of
+ * querying Neo4j on every poll. The snapshot is serialized to JSON once when it is refreshed, after the PageRank and
+ * rank position jobs complete, and it is tagged with a hash of its content that clients can revalidate with
+ * If-None-Match. The users whose ranks or PageRank changed in a refresh
+ * are pushed to the subscribers of the {@link LeaderboardStream}.
+ *
+ * @author kbastani
+ */
+@Component
+public class LeaderboardCache {
+
+    private final Log log = LogFactory.getLog(LeaderboardCache.class);
+    private final UserRepository userRepository;
+    private final ObjectMapper objectMapper;
+    private final LeaderboardStream leaderboardStream;
+    private final int size;
+    private volatile Snapshot snapshot;
+
+    @Autowired
+    public LeaderboardCache(UserRepository userRepository, ObjectMapper objectMapper,
+                            LeaderboardStream leaderboardStream, @Value("${leaderboard.size:100}") int size) {
+        this.userRepository = userRepository;
+        this.objectMapper = objectMapper;
+        this.leaderboardStream = leaderboardStream;
+        this.size = size;
+        this.snapshot = new Snapshot(Collections.emptyList(), "{\"users\":[]}".getBytes());
+    }
+
+    /**
+     * Replaces the snapshot with the current top users of the leader board
+     */
+    public void refresh() {
+        List<RankedUser> users = new ArrayList<>(userRepository.findTopRankedUsers(size));
+
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(Collections.singletonMap("users", users));
+            Snapshot previous = snapshot;
+            snapshot = new Snapshot(Collections.unmodifiableList(users), body);
+            log.info(String.format("Leader board refreshed with %s users, ETag %s", users.size(),
+                    snapshot.getETag()));
+
+            if (!snapshot.getETag().equals(previous.getETag())) {
+                leaderboardStream.publish(snapshot.getETag(), delta(previous.getUsers(), users));
+            }
+        } catch (JsonProcessingException e) {
+            log.error("Leader board could not be serialized", e);
+        }
+    }
+
+    /**
+     * Serializes the changes between two snapshots, as the users that entered the leader board or whose ranks or
+     * PageRank changed, and the profile ids of the users that left it
+     */
+    String delta(List<RankedUser> previous, List<RankedUser> current) throws JsonProcessingException {
+        Map<Long, RankedUser> before = previous.stream()
+                .collect(Collectors.toMap(RankedUser::getProfileId, u -> u, (a, b) -> a));
+        List<RankedUser> changed = new ArrayList<>();
+
+        for (RankedUser user : current) {
+            RankedUser last = before.remove(user.getProfileId());
+            if (last == null || !Objects.equals(last.getCurrentRank(), user.getCurrentRank()) ||
+                    !Objects.equals(last.getPreviousRank(), user.getPreviousRank()) ||
+                    !Objects.equals(last.getPagerank(), user.getPagerank())) {
+                changed.add(user);
+            }
+        }
+
+        Map<String, Object> delta = new LinkedHashMap<>();
+        delta.put("users", changed);
+        delta.put("removed", before.keySet());
+        return objectMapper.writeValueAsString(delta);
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * An immutable, ordered snapshot of the leader board with its serialized JSON body
+     */
+    public static class Snapshot {
+        private final List<RankedUser> users;
+        private final byte[] body;
+        private final String eTag;
+
+        Snapshot(List<RankedUser> users, byte[] body) {
+            this.users = users;
+            this.body = body;
+            this.eTag = "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+        }
+
+        public List<RankedUser> getUsers() {
+            return users;
+        }
+
+        /**
+         * @return the serialized body, which must not be modified
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}
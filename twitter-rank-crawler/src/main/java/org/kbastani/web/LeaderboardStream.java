@@ -0,0 +1,132 @@
+package org.kbastani.web;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Pushes the leader board to dashboards as server-sent events. A new subscriber receives the current snapshot as a
+ * {@code snapshot} event, and after each refresh of the {@link LeaderboardCache} every subscriber receives a
+ * {@code delta} event that only carries the users whose ranks or PageRank changed. Each event is serialized once and
+ * written to all subscribers, and the id of an event is the ETag of the snapshot that it produces.
+ * <p>
+ * Events are written by a single sender thread in the order that they were published, so a slow subscriber delays
+ * the other subscribers but never the PageRank job that refreshed the leader board. Between deltas, a comment is
+ * sent every {@code leaderboard.stream.heartbeat-ms} milliseconds, which must be shorter than the read timeout of
+ * the proxy in front of the crawler, so that the proxy does not close an idle stream and make the dashboard
+ * download a new snapshot. The number of open streams is exported as the {@code leaderboard.stream.subscribers}
+ * gauge.
+ *
+ * @author kbastani
+ */
+@Component
+public class LeaderboardStream implements DisposableBean {
+
+    static final String SNAPSHOT_EVENT = "snapshot";
+    static final String DELTA_EVENT = "delta";
+
+    private final Log log = LogFactory.getLog(LeaderboardStream.class);
+    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+    private final long timeout;
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "leaderboard-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public LeaderboardStream(MeterRegistry meterRegistry,
+                             @Value("${leaderboard.stream.timeout-ms:1800000}") long timeout,
+                             @Value("${leaderboard.stream.heartbeat-ms:20000}") long heartbeat) {
+        this.timeout = timeout;
+        meterRegistry.gauge("leaderboard.stream.subscribers", emitters, List::size);
+        sender.scheduleWithFixedDelay(this::heartbeat, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribes a dashboard to the leader board. The connection is closed after
+     * {@code leaderboard.stream.timeout-ms} milliseconds, after which the browser reconnects and receives a new
+     * snapshot. The snapshot is read and queued for the sender while deltas are held back, so that a subscriber
+     * receives every delta that was published after its snapshot.
+     *
+     * @param snapshot supplies the current snapshot of the leader board
+     */
+    public synchronized SseEmitter subscribe(Supplier<LeaderboardCache.Snapshot> snapshot) {
+        SseEmitter emitter = new SseEmitter(timeout);
+        emitter.onCompletion(() -> emitters.remove(emitter));
+        emitter.onTimeout(() -> emitters.remove(emitter));
+        emitter.onError(ex -> emitters.remove(emitter));
+
+        LeaderboardCache.Snapshot current = snapshot.get();
+        SseEmitter.SseEventBuilder event = event(SNAPSHOT_EVENT, current.getETag(),
+                new String(current.getBody(), StandardCharsets.UTF_8));
+
+        sender.execute(() -> {
+            try {
+                emitter.send(event);
+                emitters.add(emitter);
+            } catch (IOException | IllegalStateException ex) {
+                emitter.completeWithError(ex);
+            }
+        });
+
+        return emitter;
+    }
+
+    /**
+     * Queues a delta for every subscriber, and returns without waiting for it to be written
+     *
+     * @param eTag  is the ETag of the snapshot that the delta produces
+     * @param delta is the serialized delta
+     */
+    public synchronized void publish(String eTag, String delta) {
+        SseEmitter.SseEventBuilder event = event(DELTA_EVENT, eTag, delta);
+
+        sender.execute(() -> {
+            send(event);
+            log.info(String.format("Leader board delta %s sent to %s subscribers", eTag, emitters.size()));
+        });
+    }
+
+    private void heartbeat() {
+        send(SseEmitter.event().comment("heartbeat"));
+    }
+
+    /**
+     * Sends an event to every subscriber, dropping the subscribers whose connection was closed
+     */
+    private void send(SseEmitter.SseEventBuilder event) {
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(event);
+            } catch (IOException | IllegalStateException ex) {
+                emitters.remove(emitter);
+                emitter.completeWithError(ex);
+            }
+        }
+    }
+
+    private static SseEmitter.SseEventBuilder event(String name, String eTag, String data) {
+        return SseEmitter.event().name(name).id(eTag).data(data, MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    public void destroy() {
+        sender.shutdownNow();
+    }
+}
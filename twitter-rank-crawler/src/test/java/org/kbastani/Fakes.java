@@ -0,0 +1,63 @@
+package org.kbastani;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The fakes that the unit tests share, which stand in for the repositories and the Twitter API with proxies that
+ * answer from memory, so that a test needs neither a database nor the network.
+ */
+public final class Fakes {
+
+    private Fakes() {
+    }
+
+    /**
+     * @return a proxy of an interface whose calls are answered by the handler
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /**
+     * @return the value of a field of the type that was never assigned, which a proxy returns for the methods that
+     * a test does not answer, since a proxy cannot return null for a primitive type
+     */
+    public static Object defaultValue(Class<?> type) {
+        return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+    }
+
+    /**
+     * @return a response of the Twitter API that holds the items
+     */
+    public static <T> ResponseList<T> responseList(Collection<? extends T> items, RateLimitStatus status) {
+        Responses<T> responses = new Responses<>(status);
+        responses.addAll(items);
+        return responses;
+    }
+
+    private static class Responses<T> extends ArrayList<T> implements ResponseList<T> {
+        private final RateLimitStatus status;
+
+        Responses(RateLimitStatus status) {
+            this.status = status;
+        }
+
+        @Override
+        public RateLimitStatus getRateLimitStatus() {
+            return status;
+        }
+
+        @Override
+        public int getAccessLevel() {
+            return 0;
+        }
+    }
+}
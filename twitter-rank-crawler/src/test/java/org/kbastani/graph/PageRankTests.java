@@ -0,0 +1,115 @@
+package org.kbastani.graph;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class PageRankTests {
+
+    @Test
+    public void matchesReferenceImplementation() {
+        Random random = new Random(42);
+        List<long[]> edges = new ArrayList<>();
+        Set<List<Long>> unique = new HashSet<>();
+        CsrGraph.Builder builder = CsrGraph.builder();
+
+        // Sparse ids, like Neo4j node ids, with a few nodes that have no relationships
+        for (long id = 0; id < 5000; id++) {
+            builder.addNode(id * 7919);
+        }
+        for (int i = 0; i < 40000; i++) {
+            long source = random.nextInt(5000) * 7919L;
+            long target = (long) Math.sqrt(random.nextInt(5000 * 5000)) * 7919L;
+            if (source != target && unique.add(Arrays.asList(source, target))) {
+                edges.add(new long[]{source, target});
+                builder.addEdge(source, target);
+            }
+        }
+
+        CsrGraph graph = builder.build();
+        double[] scores = PageRank.compute(graph, 10, new ForkJoinPool(4));
+        Map<Long, Double> expected = reference(edges, graph, 10);
+
+        assertEquals(5000, graph.nodeCount());
+        assertEquals(edges.size(), graph.edgeCount());
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            assertEquals(expected.get(graph.id(node)), scores[node], 1e-9);
+        }
+    }
+
+    @Test
+    public void ranksStarGraph() {
+        CsrGraph.Builder builder = CsrGraph.builder();
+        int hub = builder.addNode(10);
+        CsrGraph graph = builder
+                .addEdge(11, 10)
+                .addEdge(12, 10)
+                .addEdge(13, 10)
+                .build();
+
+        double[] scores = PageRank.compute(graph, 10, ForkJoinPool.commonPool());
+
+        assertEquals(10, graph.id(hub));
+        assertEquals(0.15 + 0.85 * 3 * 0.15, scores[hub], 1e-12);
+        assertEquals(0.15, scores[hub + 1], 1e-12);
+    }
+
+    @Test
+    public void mapsSparseIdsToIndices() {
+        LongIntHashMap map = new LongIntHashMap(2);
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, map.putIfAbsent(i * 1_000_003L - 5000, i));
+        }
+
+        assertEquals(10000, map.size());
+        assertEquals(42, map.putIfAbsent(42 * 1_000_003L - 5000, 7));
+        assertEquals(9999, map.get(9999 * 1_000_003L - 5000));
+        assertEquals(LongIntHashMap.MISSING, map.get(1));
+
+        // Removing every other key must keep the remaining keys reachable from their probe sequences
+        for (int i = 0; i < 10000; i += 2) {
+            assertEquals(i, map.remove(i * 1_000_003L - 5000));
+        }
+        map.put(1 * 1_000_003L - 5000, 5);
+
+        assertEquals(5000, map.size());
+        assertEquals(LongIntHashMap.MISSING, map.remove(0 * 1_000_003L - 5000));
+        for (int i = 2; i < 10000; i++) {
+            assertEquals(i % 2 == 0 ? LongIntHashMap.MISSING : i, map.get(i * 1_000_003L - 5000));
+        }
+        assertEquals(5, map.get(1 * 1_000_003L - 5000));
+    }
+
+    /**
+     * A direct implementation of the PageRank update rule of apoc.algo.pageRank over an edge list.
+     */
+    private static Map<Long, Double> reference(List<long[]> edges, CsrGraph graph, int iterations) {
+        Map<Long, Integer> outDegree = new HashMap<>();
+        Map<Long, Double> scores = new HashMap<>();
+
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            scores.put(graph.id(node), 0.15);
+        }
+        for (long[] edge : edges) {
+            outDegree.merge(edge[0], 1, Integer::sum);
+        }
+
+        for (int i = 0; i < iterations; i++) {
+            Map<Long, Double> sums = new HashMap<>();
+            for (long[] edge : edges) {
+                sums.merge(edge[1], scores.get(edge[0]) / outDegree.get(edge[0]), Double::sum);
+            }
+            Map<Long, Double> next = new HashMap<>();
+            for (Long id : scores.keySet()) {
+                next.put(id, 0.15 + 0.85 * sums.getOrDefault(id, 0.0));
+            }
+            scores = next;
+        }
+
+        return scores;
+    }
+}
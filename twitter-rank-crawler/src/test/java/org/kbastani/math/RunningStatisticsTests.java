@@ -0,0 +1,53 @@
+package org.kbastani.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RunningStatisticsTests {
+
+    @Test
+    public void matchesTwoPassStatistics() {
+        Random random = new Random(3);
+        double[] values = new double[1000];
+        RunningStatistics statistics = new RunningStatistics();
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 2 - 1;
+            statistics.add(values[i]);
+        }
+
+        assertEquals(values.length, statistics.getCount());
+        assertEquals(Statistics.mean(values), statistics.getMean(), 1e-12);
+        assertEquals(Statistics.standardDeviation(values), statistics.getStandardDeviation(), 1e-12);
+    }
+
+    @Test
+    public void mergesBatchesLikeASingleStream() {
+        Random random = new Random(5);
+        RunningStatistics all = new RunningStatistics();
+        RunningStatistics merged = new RunningStatistics();
+
+        for (int batch = 0; batch < 20; batch++) {
+            RunningStatistics statistics = new RunningStatistics();
+            for (int i = random.nextInt(50); i > 0; i--) {
+                double value = random.nextGaussian() + batch;
+                statistics.add(value);
+                all.add(value);
+            }
+            merged.merge(statistics);
+        }
+
+        assertEquals(all.getCount(), merged.getCount());
+        assertEquals(all.getMean(), merged.getMean(), 1e-9);
+        assertEquals(all.getM2(), merged.getM2(), 1e-6);
+        assertEquals(all.getSum(), merged.getSum(), 1e-6);
+    }
+
+    @Test
+    public void emptyStatisticsHaveNoDeviation() {
+        assertEquals(0.0, new RunningStatistics().getStandardDeviation(), 0);
+    }
+}
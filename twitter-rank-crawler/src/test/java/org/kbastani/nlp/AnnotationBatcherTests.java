@@ -0,0 +1,67 @@
+package org.kbastani.nlp;
+
+import com.google.cloud.language.v1.AnnotateTextResponse;
+import com.google.cloud.language.v1.Entity;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnnotationBatcherTests {
+
+    private static final List<String> TWEETS = Arrays.asList(
+            "I love the new Java release, great work",
+            "Terrible traffic downtown today. Everything is broken!",
+            "Cloud native patterns 🚀 are awesome for microservices",
+            "@someone thanks for the talk about graph databases");
+
+    @Test
+    public void batchedAnnotationsMatchSingleAnnotations() {
+        LocalLanguageBackend backend = new LocalLanguageBackend(0);
+        TextAnalysis textAnalysis = new TextAnalysis(backend, TextAnalysisTests.noCache(), 4);
+        AnnotationBatcher batcher = new AnnotationBatcher(textAnalysis, TextAnalysisTests.noCache(), 5000, 20);
+
+        List<AnnotateTextResponse> batched = batcher.annotate(TWEETS).stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+
+        assertEquals(1, backend.getRequestCount());
+        assertEquals(TWEETS.size(), batched.size());
+
+        for (int i = 0; i < TWEETS.size(); i++) {
+            AnnotateTextResponse single = textAnalysis.annotateText(TWEETS.get(i));
+            AnnotateTextResponse segment = batched.get(i);
+
+            assertEquals(single.getSentencesList(), segment.getSentencesList());
+            assertEquals(single.getDocumentSentiment().getScore(), segment.getDocumentSentiment().getScore(), 1e-6);
+            assertEquals(names(single), names(segment));
+
+            for (int j = 0; j < single.getEntitiesCount(); j++) {
+                Entity expected = single.getEntities(j);
+                Entity actual = segment.getEntities(j);
+                assertEquals(expected.getMentionsList(), actual.getMentionsList());
+                assertEquals(expected.getSalience(), actual.getSalience(), 1e-6);
+                assertEquals(expected.getSentiment().getScore(), actual.getSentiment().getScore(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void splitsBatchesByByteBudget() {
+        LocalLanguageBackend backend = new LocalLanguageBackend(0);
+        AnnotationBatcher batcher = new AnnotationBatcher(new TextAnalysis(backend,
+                TextAnalysisTests.noCache(), 4), TextAnalysisTests.noCache(), 100, 20);
+
+        batcher.annotate(TWEETS).forEach(CompletableFuture::join);
+
+        assertEquals(3, backend.getRequestCount());
+    }
+
+    private static List<String> names(AnnotateTextResponse response) {
+        return response.getEntitiesList().stream().map(Entity::getName).sorted().collect(Collectors.toList());
+    }
+}
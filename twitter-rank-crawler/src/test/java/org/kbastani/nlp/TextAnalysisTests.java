@@ -0,0 +1,165 @@
+package org.kbastani.nlp;
+
+import com.google.cloud.language.v1.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TextAnalysisTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void analyzesSentimentWithLocalBackend() {
+        TextAnalysis textAnalysis = new TextAnalysis(new LocalLanguageBackend(0), noCache(), 4);
+
+        assertTrue(textAnalysis.analyzeSentimentText("What a great day, I love it.").getScore() > 0);
+        assertTrue(textAnalysis.analyzeSentimentText("This is terrible and broken.").getScore() < 0);
+    }
+
+    @Test
+    public void annotatesSentimentAndEntitiesInOneRequest() {
+        LocalLanguageBackend backend = new LocalLanguageBackend(0);
+        TextAnalysis textAnalysis = new TextAnalysis(backend, noCache(), 4);
+
+        AnnotateTextResponse response = textAnalysis.annotateText("I love writing Java code.");
+
+        assertEquals(1, backend.getRequestCount());
+        assertTrue(response.getDocumentSentiment().getScore() > 0);
+        assertTrue(response.getEntitiesList().stream().anyMatch(e -> e.getName().equals("Java")));
+        assertTrue(response.getEntitiesList().stream().allMatch(e -> e.getSentiment().getScore() > 0));
+    }
+
+    @Test
+    public void capsRequestsInFlight() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        LocalLanguageBackend local = new LocalLanguageBackend(20);
+
+        LanguageBackend backend = new DelegatingBackend(local) {
+            @Override
+            public CompletableFuture<AnalyzeSentimentResponse> analyzeSentiment(AnalyzeSentimentRequest request) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                return local.analyzeSentiment(request).whenComplete((r, e) -> inFlight.decrementAndGet());
+            }
+        };
+
+        TextAnalysis textAnalysis = new TextAnalysis(backend, noCache(), 3);
+
+        List<CompletableFuture<Sentiment>> results = IntStream.range(0, 30)
+                .mapToObj(i -> textAnalysis.analyzeSentimentTextAsync("tweet number " + i))
+                .collect(Collectors.toList());
+        results.forEach(CompletableFuture::join);
+
+        assertEquals(30, local.getRequestCount());
+        assertTrue(maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void reusesCachedResultsForEquivalentText() throws IOException {
+        LocalLanguageBackend backend = new LocalLanguageBackend(0);
+        File directory = temporaryFolder.newFolder();
+        AnalysisCache cache = new AnalysisCache(1, directory.getPath(), 100, 1000000,
+                new SimpleMeterRegistry());
+        TextAnalysis textAnalysis = new TextAnalysis(backend, cache, 4);
+
+        Sentiment first = textAnalysis.analyzeSentimentText("Great talk today https://t.co/abc");
+        Sentiment second = textAnalysis.analyzeSentimentText("great  talk today https://t.co/xyz");
+        assertEquals(first, second);
+        assertEquals(1, backend.getRequestCount());
+
+        // Evict the first entry to disk, then read it back after a restart of the cache
+        textAnalysis.classifyText("Java code");
+        cache.destroy();
+        textAnalysis = new TextAnalysis(backend, new AnalysisCache(1, directory.getPath(), 100,
+                1000000, new SimpleMeterRegistry()), 4);
+        assertEquals(first, textAnalysis.analyzeSentimentText("Great talk today"));
+        assertEquals(2, backend.getRequestCount());
+    }
+
+    @Test
+    public void keysAnnotationsByExactText() {
+        LocalLanguageBackend backend = new LocalLanguageBackend(0);
+        TextAnalysis textAnalysis = new TextAnalysis(backend, new AnalysisCache(10, "", 100, 1000000,
+                new SimpleMeterRegistry()), 4);
+
+        // Annotations carry offsets into the text, so text that only normalizes to the same key is annotated again
+        textAnalysis.annotateText("I love writing Java code.");
+        textAnalysis.annotateText("I love writing Java code.");
+        assertEquals(1, backend.getRequestCount());
+        textAnalysis.annotateText("I  love writing Java code. https://t.co/abc");
+        assertEquals(2, backend.getRequestCount());
+    }
+
+    @Test
+    public void prunesSpilledResultsOverTheSizeCap() throws IOException {
+        LocalLanguageBackend backend = new LocalLanguageBackend(0);
+        File directory = temporaryFolder.newFolder();
+        AnalysisCache cache = new AnalysisCache(1, directory.getPath(), 100, 200, new SimpleMeterRegistry());
+        TextAnalysis textAnalysis = new TextAnalysis(backend, cache, 4);
+
+        IntStream.range(0, 50).forEach(i -> textAnalysis.analyzeSentimentText("tweet number " + i));
+        cache.destroy();
+
+        long bytes = Files.walk(directory.toPath()).filter(Files::isRegularFile)
+                .mapToLong(path -> path.toFile().length()).sum();
+        assertTrue(bytes > 0);
+        assertTrue(bytes <= 200);
+    }
+
+    static AnalysisCache noCache() {
+        return new AnalysisCache(0, "", 100, 1000000, new SimpleMeterRegistry());
+    }
+
+    private static class DelegatingBackend implements LanguageBackend {
+        private final LanguageBackend delegate;
+
+        DelegatingBackend(LanguageBackend delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<AnalyzeSentimentResponse> analyzeSentiment(AnalyzeSentimentRequest request) {
+            return delegate.analyzeSentiment(request);
+        }
+
+        @Override
+        public CompletableFuture<AnalyzeEntitiesResponse> analyzeEntities(AnalyzeEntitiesRequest request) {
+            return delegate.analyzeEntities(request);
+        }
+
+        @Override
+        public CompletableFuture<AnalyzeEntitySentimentResponse> analyzeEntitySentiment(AnalyzeEntitySentimentRequest request) {
+            return delegate.analyzeEntitySentiment(request);
+        }
+
+        @Override
+        public CompletableFuture<AnalyzeSyntaxResponse> analyzeSyntax(AnalyzeSyntaxRequest request) {
+            return delegate.analyzeSyntax(request);
+        }
+
+        @Override
+        public CompletableFuture<ClassifyTextResponse> classifyText(ClassifyTextRequest request) {
+            return delegate.classifyText(request);
+        }
+
+        @Override
+        public CompletableFuture<AnnotateTextResponse> annotateText(AnnotateTextRequest request) {
+            return delegate.annotateText(request);
+        }
+    }
+}
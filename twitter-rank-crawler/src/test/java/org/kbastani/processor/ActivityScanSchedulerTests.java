@@ -0,0 +1,32 @@
+package org.kbastani.processor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ActivityScanSchedulerTests {
+
+    private static final long MIN = 60000;
+    private static final long MAX = 86400000;
+
+    @Test
+    public void adaptsIntervalToTweetRate() {
+        // A user that found the target number of statuses keeps its interval
+        assertEquals(600000, ActivityScanScheduler.nextInterval(600000, ActivityScanScheduler.TARGET_STATUSES,
+                MIN, MAX));
+        assertEquals(1200000, ActivityScanScheduler.nextInterval(600000, 0, MIN, MAX));
+        assertEquals(1200000, ActivityScanScheduler.nextInterval(600000, 5, MIN, MAX));
+        assertEquals(400000, ActivityScanScheduler.nextInterval(600000, 15, MIN, MAX));
+
+        // A full page halves the interval, since more statuses are waiting than one scan reads
+        assertEquals(300000, ActivityScanScheduler.nextInterval(600000, ActivityScanScheduler.PAGE_SIZE,
+                MIN, MAX));
+    }
+
+    @Test
+    public void keepsIntervalWithinBounds() {
+        assertEquals(MIN, ActivityScanScheduler.nextInterval(MIN, ActivityScanScheduler.PAGE_SIZE, MIN, MAX));
+        assertEquals(MAX, ActivityScanScheduler.nextInterval(MAX, 0, MIN, MAX));
+        assertEquals(MAX, ActivityScanScheduler.nextInterval(MAX - 1, 1, MIN, MAX));
+    }
+}
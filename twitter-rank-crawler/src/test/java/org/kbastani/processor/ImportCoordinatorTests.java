@@ -0,0 +1,44 @@
+package org.kbastani.processor;
+
+import org.junit.Test;
+import org.kbastani.user.UserRepository;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.kbastani.Fakes.proxy;
+
+public class ImportCoordinatorTests {
+
+    // The milliseconds until the lease of another replica expires, by profile id
+    private final Map<Long, Long> leases = new HashMap<>();
+
+    private final UserRepository userRepository = proxy(UserRepository.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+            case "acquireImportLease":
+                return leases.getOrDefault((Long) args[0], 0L);
+            case "releaseImportLease":
+                return null;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    });
+
+    @Test
+    public void distinguishesDuplicatesFromLeasesOfOtherReplicas() {
+        ImportCoordinator importCoordinator = new ImportCoordinator(userRepository, 900000);
+        leases.put(2L, 120000L);
+
+        assertEquals(0L, importCoordinator.tryAcquire(1L));
+        assertEquals(ImportCoordinator.IN_FLIGHT, importCoordinator.tryAcquire(1L));
+        assertEquals(120000L, importCoordinator.tryAcquire(2L));
+
+        // A user that is leased by another replica is not kept in flight, so it is claimed once the lease expires
+        leases.remove(2L);
+        assertEquals(0L, importCoordinator.tryAcquire(2L));
+
+        importCoordinator.release(1L);
+        assertEquals(0L, importCoordinator.tryAcquire(1L));
+    }
+}
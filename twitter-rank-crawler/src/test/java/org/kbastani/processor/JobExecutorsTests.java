@@ -0,0 +1,56 @@
+package org.kbastani.processor;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JobExecutorsTests {
+
+    @Test
+    public void coalescesTasksWhileOneIsPending() throws InterruptedException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        JobExecutors jobExecutors = new JobExecutors(registry);
+        ExecutorService executor = jobExecutors.create("classification", 1, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+
+        executor.execute(() -> {
+            running.countDown();
+            await(release);
+            runs.incrementAndGet();
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        // A slow task holds the thread, so one task waits and every later task is discarded
+        for (int i = 0; i < 100; i++) {
+            executor.execute(runs::incrementAndGet);
+        }
+
+        assertEquals(1.0, registry.get("executor.queued").tag("name", "classification").gauge().value(), 0);
+        assertEquals(1.0, registry.get("executor.active").tag("name", "classification").gauge().value(), 0);
+        assertEquals(99.0, registry.get("executor.rejected").tag("name", "classification").counter().count(), 0);
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(2, runs.get());
+        assertEquals(2, registry.get("executor").tag("name", "classification").timer().count());
+        jobExecutors.destroy();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.kbastani.processor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PagePipelineTests {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Test
+    public void writesPagesInOrderBeforeClosing() throws InterruptedException {
+        List<Long> written = Collections.synchronizedList(new ArrayList<>());
+
+        try (PagePipeline pipeline = new PagePipeline(executor, 2, ids -> {
+            sleep(5);
+            for (long id : ids) {
+                written.add(id);
+            }
+        })) {
+            for (long page = 0; page < 10; page++) {
+                pipeline.write(new long[]{page * 2, page * 2 + 1});
+            }
+        }
+
+        assertEquals(20, written.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (long) written.get(i));
+        }
+    }
+
+    @Test
+    public void blocksWhenWriterFallsBehind() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        PagePipeline pipeline = new PagePipeline(executor, 1, ids -> awaitQuietly(release));
+
+        // The writer holds the first page and the queue holds the second
+        pipeline.write(new long[]{1});
+        pipeline.write(new long[]{2});
+        CountDownLatch thirdWritten = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                pipeline.write(new long[]{3});
+                thirdWritten.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        assertFalse(thirdWritten.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(thirdWritten.await(5, TimeUnit.SECONDS));
+        pipeline.close();
+    }
+
+    @Test
+    public void rethrowsWriterFailure() throws InterruptedException {
+        PagePipeline pipeline = new PagePipeline(executor, 1, ids -> {
+            throw new IllegalStateException("Neo4j is unavailable");
+        });
+
+        try {
+            for (int page = 0; page < 100; page++) {
+                pipeline.write(new long[]{page});
+            }
+            pipeline.close();
+            fail("The writer failure was not rethrown");
+        } catch (IllegalStateException ex) {
+            assertEquals("Neo4j is unavailable", ex.getMessage());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.kbastani.processor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.kbastani.tweet.TwitterService;
+import org.kbastani.twitter.MockTwitter;
+import org.kbastani.twitter.RateLimiter;
+import org.kbastani.twitter.TwitterClient;
+import org.kbastani.user.CrawlFrontier;
+import org.kbastani.user.UserRepository;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.kbastani.Fakes.proxy;
+
+public class RankProcessorTests {
+
+    private final List<Object> queued = new ArrayList<>();
+
+    private final UserRepository userRepository = proxy(UserRepository.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+            case "findUsersByProfileIds":
+                return Collections.emptyList();
+            case "save":
+                return args[0];
+            default:
+                return null;
+        }
+    });
+
+    private final RabbitTemplate rabbitTemplate = new RabbitTemplate() {
+        @Override
+        public void convertAndSend(String routingKey, Object object) {
+            queued.add(object);
+        }
+    };
+
+    @Test
+    public void scheduledDiscoveryDoesNotSuppressTheNextRun() {
+        CrawlFrontier crawlFrontier = new CrawlFrontier(userRepository, 100);
+        crawlFrontier.replace(new long[]{1, 2, 3, 4}, new double[]{4.0, 3.0, 2.0, 1.0}, new int[]{3, 3, 3, 3}, 4);
+        TwitterClient twitterClient = new TwitterClient(Collections.singletonMap("a",
+                new MockTwitter("a", 900, new ArrayList<>()).twitter()), new RateLimiter());
+        TwitterService twitterService = new TwitterService(twitterClient, userRepository, null, null, null,
+                rabbitTemplate, new ObjectMapper(), null, crawlFrontier);
+        RankProcessor rankProcessor = new RankProcessor(twitterService, userRepository, null, null, null,
+                twitterClient, proxy(AmqpAdmin.class, (proxy, method, args) -> null), crawlFrontier, null, null,
+                null, null, new JobExecutors(new SimpleMeterRegistry()), 1, 1);
+
+        rankProcessor.discoverUsers();
+        rankProcessor.discoverUsers();
+        assertEquals(2, queued.size());
+
+        // A user that the crawler queued after an import postpones the next scheduled run
+        twitterService.discoverNextUser();
+        rankProcessor.discoverUsers();
+        assertEquals(3, queued.size());
+    }
+}
@@ -0,0 +1,47 @@
+package org.kbastani.text;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class RankableEntitiesTests {
+
+    private static final Pattern EXCLUDED = Pattern.compile(RankableEntities.EXCLUDED_NAMES);
+
+    @Test
+    public void excludesNoise() {
+        for (String name : Arrays.asList("", "a", "_", "7", "2019", "https://t.co/x", "see http", "HTTP",
+                "rt @kbastani", "RTs", "@kbastani", "mail@example.com", "#neo4j", " java", "éclair", "-",
+                "😀")) {
+            assertFalse(name, RankableEntities.isRankable(name));
+        }
+
+        for (String name : Arrays.asList("java", "neo4j", "spring boot", "r2", "tr", "htt", "ht tp", "_x",
+                "2nd place", "café")) {
+            assertTrue(name, RankableEntities.isRankable(name));
+        }
+
+        assertFalse(RankableEntities.isRankable(null));
+    }
+
+    @Test
+    public void agreesWithExcludedNamesExpression() {
+        char[] alphabet = "httpHTTPrRtT@#_09aZ \n.-éK😀".toCharArray();
+        Random random = new Random(24);
+        StringBuilder name = new StringBuilder();
+
+        for (int i = 0; i < 200000; i++) {
+            name.setLength(0);
+            int length = random.nextInt(7);
+            for (int j = 0; j < length; j++) {
+                name.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+
+            assertEquals(name.toString(), !EXCLUDED.matcher(name).matches(), RankableEntities.isRankable(name));
+        }
+    }
+}
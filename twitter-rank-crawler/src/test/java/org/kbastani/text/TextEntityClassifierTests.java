@@ -0,0 +1,78 @@
+package org.kbastani.text;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.kbastani.nlp.AnalysisCache;
+import org.kbastani.nlp.LocalLanguageBackend;
+import org.kbastani.nlp.TextAnalysis;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.kbastani.Fakes.proxy;
+
+public class TextEntityClassifierTests {
+
+    private final List<String> claimed = new ArrayList<>();
+    private final List<List<Map<String, Object>>> writes = new ArrayList<>();
+    private final Map<String, List<String>> tweets = new HashMap<>();
+    private int tweetQueries;
+
+    @SuppressWarnings("unchecked")
+    private final TextEntityRepository textEntityRepository = proxy(TextEntityRepository.class,
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "claimUncategorizedTextEntities":
+                        List<String> batch = new ArrayList<>(claimed.subList(0,
+                                Math.min((Integer) args[0], claimed.size())));
+                        claimed.removeAll(batch);
+                        return batch;
+                    case "findTweetsForTextEntities":
+                        tweetQueries++;
+                        List<EntityTweets> result = new ArrayList<>();
+                        for (Object name : (Collection<?>) args[0]) {
+                            if (tweets.containsKey(name)) {
+                                result.add(new EntityTweets((String) name, tweets.get(name)));
+                            }
+                        }
+                        return result;
+                    case "saveTextEntityCategories":
+                        writes.add(new ArrayList<>((List<Map<String, Object>>) args[0]));
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    @Test
+    public void classifiesClaimedEntitiesInOneBatch() {
+        TextAnalysis textAnalysis = new TextAnalysis(new LocalLanguageBackend(0),
+                new AnalysisCache(0, "", 100, 1000000, new SimpleMeterRegistry()), 4);
+        TextEntityClassifier classifier = new TextEntityClassifier(textEntityRepository, textAnalysis, 2, 600000,
+                500);
+
+        claimed.addAll(Arrays.asList("java", "spring", "neo4j"));
+        tweets.put("java", Arrays.asList("I love writing Java code", "Java is a programming language",
+                "Software engineering with Java"));
+        tweets.put("spring", Collections.singletonList("Spring Boot"));
+
+        assertEquals(2, classifier.classifyNext());
+        assertEquals(1, tweetQueries);
+        assertEquals(1, writes.size());
+
+        Map<String, Object> java = writes.get(0).get(0);
+        Map<String, Object> spring = writes.get(0).get(1);
+        assertEquals("java", java.get("name"));
+        assertTrue(((List<?>) java.get("categories")).stream()
+                .allMatch(c -> c.equals(c.toString().toLowerCase())));
+
+        // An entity with too few tweets is still marked as categorized, without categories
+        assertEquals("spring", spring.get("name"));
+        assertEquals(Collections.emptyList(), spring.get("categories"));
+
+        assertEquals(1, classifier.classifyNext());
+        assertEquals(0, classifier.classifyNext());
+        assertEquals(2, writes.size());
+    }
+}
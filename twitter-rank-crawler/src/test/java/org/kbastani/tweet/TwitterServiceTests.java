@@ -0,0 +1,64 @@
+package org.kbastani.tweet;
+
+import org.junit.Test;
+import org.kbastani.twitter.MockTwitter;
+import org.kbastani.twitter.RateLimiter;
+import org.kbastani.twitter.TwitterClient;
+import org.kbastani.user.User;
+import org.kbastani.user.UserRepository;
+import twitter4j.Paging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.kbastani.Fakes.proxy;
+
+public class TwitterServiceTests {
+
+    private final MockTwitter mockTwitter = new MockTwitter("a", 900, new ArrayList<>()).timeline(41, 100);
+    private final List<Paging> pagings = mockTwitter.getPagings();
+
+    private final UserRepository userRepository = proxy(UserRepository.class, (proxy, method, args) -> {
+        if (method.getName().equals("save")) {
+            return args[0];
+        }
+        throw new UnsupportedOperationException(method.getName());
+    });
+
+    @Test
+    public void countsStatusesPostedSinceTheLastScan() {
+        TwitterService twitterService = new TwitterService(
+                new TwitterClient(Collections.singletonMap("a", mockTwitter.twitter()), new RateLimiter()),
+                userRepository, null, null, null, null, null, null, null);
+        User user = new User(1L, 1L);
+        user.setScreenName("user");
+
+        // The first scan reads the top of the timeline, and a user that was never scanned posted nothing since
+        assertEquals(0, twitterService.scanUserActivity(user));
+        assertEquals(1, pagings.size());
+        assertEquals(100L, (long) user.getLastSeenTweetId());
+        assertEquals(81L, (long) user.getLastImportedTweetId());
+
+        // A user with history left reads its new statuses and the page before its oldest imported status
+        mockTwitter.timeline(41, 103);
+        assertEquals(3, twitterService.scanUserActivity(user));
+        assertEquals(100L, pagings.get(1).getSinceId());
+        assertEquals(80L, pagings.get(2).getMaxId());
+        assertEquals(103L, (long) user.getLastSeenTweetId());
+        assertEquals(61L, (long) user.getLastImportedTweetId());
+
+        assertEquals(0, twitterService.scanUserActivity(user));
+        assertEquals(41L, (long) user.getLastImportedTweetId());
+        assertFalse(user.getTimelineBackfilled());
+
+        // Once the history is imported, only the new statuses are read
+        assertEquals(0, twitterService.scanUserActivity(user));
+        assertTrue(user.getTimelineBackfilled());
+        pagings.clear();
+        mockTwitter.timeline(41, 104);
+        assertEquals(1, twitterService.scanUserActivity(user));
+        assertEquals(1, pagings.size());
+    }
+}
@@ -0,0 +1,199 @@
+package org.kbastani.twitter;
+
+import twitter4j.*;
+import twitter4j.api.TimelinesResources;
+import twitter4j.api.UsersResources;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.kbastani.Fakes.defaultValue;
+import static org.kbastani.Fakes.proxy;
+import static org.kbastani.Fakes.responseList;
+
+/**
+ * A fake Twitter API for one credential, which serves the id, user, and timeline endpoints from memory and enforces
+ * its own rate limit. Every call is recorded as {@code <name>:<method>}, and a call that exceeds the rate limit fails
+ * the same way as the real API, with an HTTP 429 {@link TwitterException}.
+ * <p>
+ * The timeline of every user holds the statuses with the ids from the oldest to the newest id of
+ * {@link #timeline(long, long)}, and the {@link Paging} of each timeline request is recorded.
+ */
+public class MockTwitter implements InvocationHandler {
+
+    private final String name;
+    private final int limit;
+    private final List<String> calls;
+    private final List<Paging> pagings = new ArrayList<>();
+    private final long resetAt = System.currentTimeMillis() + Endpoint.WINDOW_MILLIS;
+    private int remaining;
+    private long oldest = 1;
+    private long newest = 0;
+
+    /**
+     * @param name      is the name of the credential, which is recorded with every call
+     * @param remaining is the number of calls that the credential may make before it is rate limited
+     * @param calls     records the calls that were made
+     */
+    public MockTwitter(String name, int remaining, List<String> calls) {
+        this.name = name;
+        this.limit = 15;
+        this.remaining = remaining;
+        this.calls = calls;
+    }
+
+    static Twitter create(String name, int remaining, List<String> calls) {
+        return new MockTwitter(name, remaining, calls).twitter();
+    }
+
+    /**
+     * @return the Twitter API that this fake serves
+     */
+    public Twitter twitter() {
+        return proxy(Twitter.class, this);
+    }
+
+    /**
+     * Serves the statuses with the ids from {@code oldest} to {@code newest} on every timeline
+     */
+    public MockTwitter timeline(long oldest, long newest) {
+        this.oldest = oldest;
+        this.newest = newest;
+        return this;
+    }
+
+    /**
+     * @return the paging of every timeline request, in the order that they were made
+     */
+    public List<Paging> getPagings() {
+        return pagings;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "getFollowersIDs":
+            case "getFriendsIDs":
+                consume(method.getName());
+                return ids(new long[]{1L, 2L, 3L});
+            case "users":
+                return proxy(UsersResources.class, (p, m, a) -> {
+                    consume(m.getName());
+                    if (m.getName().equals("lookupUsers")) {
+                        return responseList(LongStream.of((long[]) a[0]).mapToObj(this::user)
+                                .collect(Collectors.toList()), status(limit, remaining, resetAt));
+                    }
+                    return user(a[0] instanceof Long ? (Long) a[0] : 1L);
+                });
+            case "timelines":
+                return proxy(TimelinesResources.class, (p, m, a) -> {
+                    consume(m.getName());
+                    return timeline((Paging) a[1]);
+                });
+            case "toString":
+                return name;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private synchronized void consume(String method) throws TwitterException {
+        calls.add(name + ":" + method);
+        if (remaining == 0) {
+            throw new TwitterException("Rate limit exceeded", null, 429);
+        }
+        remaining--;
+    }
+
+    private IDs ids(long[] ids) {
+        RateLimitStatus status = status(limit, remaining, resetAt);
+        return proxy(IDs.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getIDs":
+                    return ids;
+                case "hasNext":
+                case "hasPrevious":
+                    return false;
+                case "getNextCursor":
+                case "getPreviousCursor":
+                    return 0L;
+                case "getRateLimitStatus":
+                    return status;
+                default:
+                    return 0;
+            }
+        });
+    }
+
+    private User user(long id) {
+        RateLimitStatus status = status(limit, remaining, resetAt);
+        return proxy(User.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getId":
+                    return id;
+                case "getScreenName":
+                    return name + "-" + id;
+                case "getRateLimitStatus":
+                    return status;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        });
+    }
+
+    /**
+     * Serves the statuses of the timeline within the bounds of a page, newest first
+     */
+    private ResponseList<Status> timeline(Paging paging) {
+        pagings.add(paging);
+        long to = paging.getMaxId() > 0 ? Math.min(paging.getMaxId(), newest) : newest;
+        long from = Math.max(Math.max(paging.getSinceId() + 1, oldest), to - paging.getCount() + 1);
+        List<Status> statuses = LongStream.rangeClosed(from, to).map(id -> to - id + from)
+                .mapToObj(MockTwitter::status).collect(Collectors.toList());
+        return responseList(statuses, status(limit, remaining, resetAt));
+    }
+
+    private static Status status(long id) {
+        return proxy(Status.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getId":
+                    return id;
+                case "getCreatedAt":
+                    return new Date(0);
+                case "isRetweet":
+                    return true;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        });
+    }
+
+    static RateLimitStatus status(int limit, int remaining, long resetAt) {
+        return new RateLimitStatus() {
+            @Override
+            public int getRemaining() {
+                return remaining;
+            }
+
+            @Override
+            public int getLimit() {
+                return limit;
+            }
+
+            @Override
+            public int getResetTimeInSeconds() {
+                return (int) (resetAt / 1000);
+            }
+
+            @Override
+            public int getSecondsUntilReset() {
+                return (int) Math.max(0, (resetAt - System.currentTimeMillis()) / 1000);
+            }
+        };
+    }
+}
@@ -0,0 +1,49 @@
+package org.kbastani.twitter;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class RateLimiterTests {
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private final RateLimiter rateLimiter = new RateLimiter(now::get);
+
+    @Test
+    public void delaysRequestsUntilTheWindowResets() {
+        for (int i = 0; i < Endpoint.FOLLOWERS_IDS.getDefaultLimit(); i++) {
+            assertEquals(0L, rateLimiter.tryAcquire("a", Endpoint.FOLLOWERS_IDS));
+        }
+
+        assertEquals(Endpoint.WINDOW_MILLIS, rateLimiter.tryAcquire("a", Endpoint.FOLLOWERS_IDS));
+        assertEquals(0L, rateLimiter.tryAcquire("b", Endpoint.FOLLOWERS_IDS));
+        assertEquals(0L, rateLimiter.tryAcquire("a", Endpoint.FRIENDS_IDS));
+
+        now.addAndGet(Endpoint.WINDOW_MILLIS - 1);
+        assertEquals(1L, rateLimiter.delay("a", Endpoint.FOLLOWERS_IDS));
+        now.incrementAndGet();
+        assertEquals(0L, rateLimiter.tryAcquire("a", Endpoint.FOLLOWERS_IDS));
+    }
+
+    @Test
+    public void followsTheRateLimitStatusOfResponses() {
+        rateLimiter.update("a", Endpoint.USER_TIMELINE, MockTwitter.status(900, 1, now.get() + 5000));
+
+        assertEquals(1, rateLimiter.remaining("a", Endpoint.USER_TIMELINE));
+        assertEquals(0L, rateLimiter.tryAcquire("a", Endpoint.USER_TIMELINE));
+        assertEquals(5000L, rateLimiter.tryAcquire("a", Endpoint.USER_TIMELINE));
+
+        now.addAndGet(5000);
+        assertEquals(900, rateLimiter.remaining("a", Endpoint.USER_TIMELINE));
+    }
+
+    @Test
+    public void exhaustsRejectedEndpoints() {
+        rateLimiter.exhaust("a", Endpoint.USERS_SHOW, 30000);
+
+        assertEquals(0, rateLimiter.remaining("a", Endpoint.USERS_SHOW));
+        assertEquals(30000L, rateLimiter.delay("a", Endpoint.USERS_SHOW));
+    }
+}
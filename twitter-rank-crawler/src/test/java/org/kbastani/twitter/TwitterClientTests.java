@@ -0,0 +1,56 @@
+package org.kbastani.twitter;
+
+import org.junit.Test;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TwitterClientTests {
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void routesCallsToTheCredentialWithTheMostRemainingQuota() throws TwitterException {
+        TwitterClient client = client(MockTwitter.create("a", 2, calls), MockTwitter.create("b", 5, calls));
+
+        for (int i = 0; i < 7; i++) {
+            assertArrayEquals(new long[]{1L, 2L, 3L}, client.getFollowersIDs(42L, -1L).getIDs());
+        }
+
+        assertEquals(Arrays.asList("a:getFollowersIDs", "b:getFollowersIDs", "b:getFollowersIDs",
+                "b:getFollowersIDs", "b:getFollowersIDs", "a:getFollowersIDs", "b:getFollowersIDs"), calls);
+        assertEquals(0, client.remaining(Endpoint.FOLLOWERS_IDS));
+        assertEquals(30, client.remaining(Endpoint.FRIENDS_IDS));
+
+        try {
+            client.getFollowersIDs(42L, -1L);
+            fail("The call was sent although no credential had quota left");
+        } catch (RateLimitedException ex) {
+            assertEquals(Endpoint.FOLLOWERS_IDS, ex.getEndpoint());
+            assertTrue(ex.getRetryAfter() > 0);
+            assertEquals(7, calls.size());
+        }
+    }
+
+    @Test
+    public void failsOverWhenTwitterRejectsACall() throws TwitterException {
+        TwitterClient client = client(MockTwitter.create("a", 0, calls), MockTwitter.create("b", 900, calls));
+
+        assertEquals("b-7", client.showUser(7L).getScreenName());
+        assertEquals(Arrays.asList("a:showUser", "b:showUser"), calls);
+        assertEquals(0L, client.delay(Endpoint.USERS_SHOW));
+
+        client.showUser(8L);
+        assertEquals("b:showUser", calls.get(2));
+    }
+
+    private static TwitterClient client(Twitter a, Twitter b) {
+        Map<String, Twitter> credentials = new LinkedHashMap<>();
+        credentials.put("a", a);
+        credentials.put("b", b);
+        return new TwitterClient(credentials, new RateLimiter());
+    }
+}
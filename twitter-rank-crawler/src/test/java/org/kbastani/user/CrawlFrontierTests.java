@@ -0,0 +1,110 @@
+package org.kbastani.user;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CrawlFrontierTests {
+
+    @Test
+    public void pollsByPageRankThenFollowers() {
+        CrawlFrontier frontier = new CrawlFrontier(null, 100);
+        frontier.replace(new long[]{1, 2, 3, 4, 5},
+                new double[]{0.5, 2.0, 0.5, CrawlFrontier.UNRANKED, CrawlFrontier.UNRANKED},
+                new int[]{1, 0, 7, 9, 2}, 5);
+
+        // User 5 has no PageRank and too few followers to be discovered
+        assertEquals(4, frontier.size());
+        assertEquals(Arrays.asList(2L, 3L), ids(frontier.poll(2)));
+        assertEquals(Arrays.asList(1L, 4L), ids(frontier.poll(10)));
+        assertTrue(frontier.poll(10).isEmpty());
+    }
+
+    @Test
+    public void countsFollowersAsEdgesAreImported() {
+        CrawlFrontier frontier = new CrawlFrontier(null, 100);
+        frontier.replace(new long[]{1}, new double[]{CrawlFrontier.UNRANKED}, new int[]{4}, 1);
+
+        frontier.addFollowers(Arrays.asList(2L, 3L, 2L));
+        assertTrue(frontier.poll(10).stream().allMatch(c -> c.getProfileId() == 1L));
+
+        frontier.addFollowers(Arrays.asList(2L, 2L, 2L));
+        frontier.remove(3L);
+        List<CrawlCandidate> polled = frontier.poll(10);
+
+        assertEquals(Collections.singletonList(2L), ids(polled));
+        assertEquals(5, (int) polled.get(0).getFollowers());
+        assertEquals(0, frontier.size());
+
+        frontier.offer(polled);
+        assertEquals(Collections.singletonList(2L), ids(frontier.poll(10)));
+    }
+
+    @Test
+    public void matchesSortedOrderUnderRandomUpdates() {
+        Random random = new Random(7);
+        CrawlFrontier frontier = new CrawlFrontier(null, 1000);
+        Map<Long, double[]> expected = new HashMap<>();
+        long[] ids = new long[2000];
+        double[] ranks = new double[2000];
+        int[] counts = new int[2000];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = random.nextInt(1_000_000) * 31L;
+            ranks[i] = random.nextInt(4) == 0 ? CrawlFrontier.UNRANKED : random.nextDouble();
+            counts[i] = random.nextInt(10);
+        }
+        frontier.replace(ids, ranks, counts, ids.length);
+
+        // The bound keeps the highest priority users of the rebuild
+        for (int i = 0; i < ids.length; i++) {
+            if (ranks[i] != CrawlFrontier.UNRANKED || counts[i] >= CrawlFrontier.MIN_FOLLOWERS) {
+                expected.putIfAbsent(ids[i], new double[]{ranks[i], counts[i]});
+            }
+        }
+        List<Long> kept = expected.entrySet().stream()
+                .sorted(CrawlFrontierTests::byPriority)
+                .limit(1000)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        expected.keySet().retainAll(kept);
+        assertEquals(1000, frontier.size());
+
+        for (int i = 0; i < 500; i++) {
+            long id = kept.get(random.nextInt(kept.size()));
+            if (random.nextBoolean() && expected.containsKey(id)) {
+                frontier.addFollowers(Collections.singletonList(id));
+                expected.get(id)[1]++;
+            } else {
+                frontier.remove(id);
+                expected.remove(id);
+            }
+        }
+
+        List<Long> order = expected.entrySet().stream()
+                .sorted(CrawlFrontierTests::byPriority)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        List<CrawlCandidate> polled = frontier.poll(order.size());
+
+        assertEquals(order.size(), polled.size());
+        for (int i = 0; i < polled.size(); i++) {
+            double[] priority = expected.get(order.get(i));
+            assertEquals(priority[0], polled.get(i).getPagerank(), 0);
+            assertEquals((int) priority[1], (int) polled.get(i).getFollowers());
+        }
+    }
+
+    private static int byPriority(Map.Entry<Long, double[]> a, Map.Entry<Long, double[]> b) {
+        int rank = Double.compare(b.getValue()[0], a.getValue()[0]);
+        return rank != 0 ? rank : Double.compare(b.getValue()[1], a.getValue()[1]);
+    }
+
+    private static List<Long> ids(List<CrawlCandidate> candidates) {
+        return candidates.stream().map(CrawlCandidate::getProfileId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,67 @@
+package org.kbastani.user;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RankPositionsTests {
+
+    @Test
+    public void ordersByPageRankThenProfileId() {
+        RankPositions.Ranking ranking = RankPositions.Ranking.read(Arrays.asList(
+                row(30L, 0.5, 2, true),
+                row(10L, 1.5, null, false),
+                row(20L, 0.5, 3, true),
+                row(40L, 2.0f, 1, true)));
+
+        // Scores are read as floats or doubles, depending on how they were written
+        assertArrayEquals(new int[]{3, 1, 2, 0}, ranking.order());
+        assertEquals(-1, ranking.currentRanks[1]);
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (long i = 0; i < 5000; i++) {
+            rows.add(row(i, i / 10.0, null, false));
+        }
+
+        int[] order = RankPositions.Ranking.read(rows).order();
+
+        assertEquals(5000, order.length);
+        assertEquals(4999, order[0]);
+        assertEquals(0, order[4999]);
+    }
+
+    @Test
+    public void ordersShuffledTies() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            rows.add(row(i, (double) (i / 100), null, false));
+        }
+        Collections.shuffle(rows, new Random(7));
+
+        RankPositions.Ranking ranking = RankPositions.Ranking.read(rows);
+        int[] order = ranking.order();
+
+        for (int i = 1; i < order.length; i++) {
+            double previous = ranking.pageranks[order[i - 1]];
+            double current = ranking.pageranks[order[i]];
+            assertTrue(previous > current ||
+                    previous == current && ranking.profileIds[order[i - 1]] < ranking.profileIds[order[i]]);
+        }
+    }
+
+    private static Map<String, Object> row(Long profileId, Number pagerank, Integer currentRank, boolean ranked) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("profileId", profileId);
+        row.put("pagerank", pagerank);
+        row.put("currentRank", currentRank);
+        row.put("ranked", ranked);
+        return row;
+    }
+}
@@ -0,0 +1,69 @@
+package org.kbastani.user;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SentimentRecomputeTests {
+
+    @Test
+    public void foldsSentimentsOfEachUserInOnePass() {
+        List<Map<String, Object>> sentiments = Arrays.asList(
+                sentiment(1L, 0L, 0.5), sentiment(1L, 0L, -0.5), sentiment(1L, 0L, 0.3),
+                sentiment(2L, 4L, null),
+                sentiment(3L, 1L, 0.8));
+        List<List<Map<String, Object>>> batches = new ArrayList<>();
+
+        SentimentRecompute.Chunk chunk = SentimentRecompute.Chunk.read(sentiments, 2, rows -> {
+            batches.add(new ArrayList<>(rows));
+            return 0;
+        });
+
+        assertEquals(3, chunk.users);
+        assertEquals(3L, chunk.lastProfileId);
+        assertEquals(0, chunk.skipped);
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).size());
+
+        Map<String, Object> first = batches.get(0).get(0);
+        double mean = 0.1;
+        double m2 = Math.pow(0.4, 2) + Math.pow(-0.6, 2) + Math.pow(0.2, 2);
+        assertEquals(3L, first.get("count"));
+        assertEquals(mean, (double) first.get("average"), 1e-9);
+        assertEquals(m2, (double) first.get("m2"), 1e-9);
+        assertEquals(Math.sqrt(m2 / 3), (double) first.get("std"), 1e-9);
+        assertEquals(0.3, (double) first.get("cumulative"), 1e-9);
+
+        // A user without entity sentiments is cleared, and its previous count guards against concurrent scans
+        Map<String, Object> second = batches.get(0).get(1);
+        assertEquals(0L, second.get("count"));
+        assertEquals(4L, second.get("previousCount"));
+        assertNull(second.get("average"));
+
+        assertEquals(3L, batches.get(1).get(0).get("profileId"));
+    }
+
+    @Test
+    public void countsUsersThatWereSkippedByTheWrite() {
+        List<Map<String, Object>> sentiments = Arrays.asList(sentiment(1L, 0L, 0.5), sentiment(2L, 0L, 0.5));
+
+        SentimentRecompute.Chunk chunk = SentimentRecompute.Chunk.read(sentiments, 10, rows -> 1);
+        assertEquals(2, chunk.users);
+        assertEquals(1, chunk.skipped);
+
+        chunk = SentimentRecompute.Chunk.read(Collections.emptyList(), 10, rows -> rows.size());
+        assertEquals(0, chunk.users);
+        assertEquals(0, chunk.skipped);
+    }
+
+    private static Map<String, Object> sentiment(Long profileId, Long previousCount, Double sentiment) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("profileId", profileId);
+        row.put("previousCount", previousCount);
+        row.put("sentiment", sentiment);
+        return row;
+    }
+}
@@ -0,0 +1,126 @@
+package org.kbastani.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.kbastani.user.RankedUser;
+import org.kbastani.user.UserRepository;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.kbastani.Fakes.proxy;
+
+public class LeaderboardCacheTests {
+
+    private final LeaderboardStream stream = new LeaderboardStream(new SimpleMeterRegistry(), 1000, 20000);
+    private final List<RankedUser> leaderboard = new ArrayList<>();
+    private final UserRepository userRepository = proxy(UserRepository.class, (proxy, method, args) -> {
+        if (method.getName().equals("findTopRankedUsers")) {
+            return leaderboard.stream().limit((Integer) args[0]).collect(Collectors.toList());
+        } else if (method.getName().equals("findRankedUsersAfter")) {
+            // Seeks past the keys of the previous page like the Cypher query
+            Double pagerank = (Double) args[0];
+            Long profileId = (Long) args[1];
+            return leaderboard.stream()
+                    .filter(u -> u.getPagerank() <= pagerank &&
+                            (u.getPagerank() < pagerank || u.getProfileId() > profileId))
+                    .limit((Integer) args[2])
+                    .collect(Collectors.toList());
+        }
+        throw new UnsupportedOperationException(method.getName());
+    });
+
+    @Test
+    public void servesSnapshotInLeaderboardOrder() throws Exception {
+        LeaderboardCache cache = new LeaderboardCache(userRepository, new ObjectMapper(), stream, 100);
+        leaderboard.addAll(Arrays.asList(user(2L, "b", 2.5), user(3L, "c", 1.5), user(1L, "a", 0.5)));
+
+        cache.refresh();
+        JsonNode users = new ObjectMapper().readTree(cache.getSnapshot().getBody()).get("users");
+
+        assertEquals(3, users.size());
+        assertEquals("b", users.get(0).get("screenName").asText());
+        assertEquals("c", users.get(1).get("screenName").asText());
+        assertEquals("a", users.get(2).get("screenName").asText());
+        assertFalse(users.get(0).has("follows"));
+    }
+
+    @Test
+    public void revalidatesWithETag() {
+        LeaderboardCache cache = new LeaderboardCache(userRepository, new ObjectMapper(), stream, 100);
+        ApiController controller = new ApiController(null, cache, stream, userRepository, null);
+        leaderboard.add(user(1L, "a", 0.5));
+        cache.refresh();
+
+        ResponseEntity<byte[]> first = controller.getLeaderboard(null);
+        String eTag = first.getHeaders().getETag();
+        assertEquals(HttpStatus.OK, first.getStatusCode());
+        assertEquals(HttpStatus.NOT_MODIFIED, controller.getLeaderboard(eTag).getStatusCode());
+        assertNull(controller.getLeaderboard("W/" + eTag).getBody());
+
+        // A refresh with the same users keeps the ETag, and a change in the ranking replaces it
+        cache.refresh();
+        assertEquals(eTag, cache.getSnapshot().getETag());
+        leaderboard.add(user(2L, "b", 1.5));
+        cache.refresh();
+        assertNotEquals(eTag, cache.getSnapshot().getETag());
+        assertEquals(HttpStatus.OK, controller.getLeaderboard(eTag).getStatusCode());
+    }
+
+    @Test
+    public void deltaCarriesOnlyChangedUsers() throws Exception {
+        LeaderboardCache cache = new LeaderboardCache(userRepository, new ObjectMapper(), stream, 100);
+        List<RankedUser> previous = Arrays.asList(user(1L, "a", 2.5), user(2L, "b", 1.5), user(3L, "c", 0.5));
+        List<RankedUser> current = Arrays.asList(user(1L, "a", 2.5), user(3L, "c", 1.0), user(4L, "d", 0.7));
+        current.get(0).setCurrentRank(1);
+        previous.get(0).setCurrentRank(1);
+
+        JsonNode delta = new ObjectMapper().readTree(cache.delta(previous, current));
+
+        assertEquals(2, delta.get("users").size());
+        assertEquals("c", delta.get("users").get(0).get("screenName").asText());
+        assertEquals("d", delta.get("users").get(1).get("screenName").asText());
+        assertEquals(1, delta.get("removed").size());
+        assertEquals(2L, delta.get("removed").get(0).asLong());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void pagesThroughRankedUsersWithKeys() {
+        ApiController controller = new ApiController(null, null, null, userRepository, null);
+        leaderboard.addAll(Arrays.asList(user(1L, "a", 2.5), user(2L, "b", 1.5), user(3L, "c", 1.5),
+                user(4L, "d", 0.5)));
+
+        Map<String, Object> first = controller.getRankedUsers(null, null, 2).getBody();
+        Map<String, Object> next = (Map<String, Object>) first.get("next");
+        assertEquals(1.5, next.get("pagerank"));
+        assertEquals(2L, next.get("profileId"));
+
+        Map<String, Object> second = controller.getRankedUsers((Double) next.get("pagerank"),
+                (Long) next.get("profileId"), 2).getBody();
+        List<RankedUser> users = (List<RankedUser>) second.get("users");
+        assertEquals("c", users.get(0).getScreenName());
+        assertEquals("d", users.get(1).getScreenName());
+
+        Map<String, Object> last = controller.getRankedUsers(0.5, 4L, 2).getBody();
+        assertTrue(((List<RankedUser>) last.get("users")).isEmpty());
+        assertNull(last.get("next"));
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getRankedUsers(1.5, null, 2).getStatusCode());
+    }
+
+    private static RankedUser user(Long profileId, String screenName, Double pagerank) {
+        RankedUser user = new RankedUser();
+        user.setProfileId(profileId);
+        user.setScreenName(screenName);
+        user.setPagerank(pagerank);
+        return user;
+    }
+}
@@ -48,22 +48,72 @@ $(function () {
         }
     });
 
-    $.ajax({
-        url: '/twitter-rank/users/search/findRankedUsers?skip=0&limit=100',
-        type: "get",
-        dataType: "json",
-        success: function (data) {
-            $(".loader").hide();
-            drawTable(data._embedded.users);
-            drawDashboardHeader(data._embedded.users)
-        },
-        error: function (xhr, status) {
-            $(".glyphicon-refresh")
-                .removeClass("glyphicon-refresh")
-                .removeClass("glyphicon-refresh-animate")
-                .addClass("glyphicon-exclamation-sign")
-        }
-    });
+    var leaderboard = [];
+
+    if (window.EventSource) {
+        // The crawler pushes the leader board once, and then only the users whose ranks changed
+        var stream = new EventSource('/twitter-rank/v1/leaderboard/stream');
+
+        stream.addEventListener('snapshot', function (event) {
+            leaderboard = JSON.parse(event.data).users;
+            redraw();
+        });
+
+        stream.addEventListener('delta', function (event) {
+            applyDelta(JSON.parse(event.data));
+            redraw();
+        });
+
+        stream.onerror = function () {
+            if (stream.readyState === EventSource.CLOSED) {
+                showError();
+            }
+        };
+    } else {
+        $.ajax({
+            url: '/twitter-rank/v1/leaderboard',
+            type: "get",
+            dataType: "json",
+            success: function (data) {
+                leaderboard = data.users;
+                redraw();
+            },
+            error: function (xhr, status) {
+                showError();
+            }
+        });
+    }
+
+    function applyDelta(delta) {
+        var changed = {};
+        delta.users.forEach(function (user) {
+            changed[user.profileId] = user;
+        });
+
+        leaderboard = leaderboard.filter(function (user) {
+            return delta.removed.indexOf(user.profileId) < 0 && !changed[user.profileId];
+        }).concat(delta.users);
+
+        // The same order as the crawler, where users with equal PageRanks are ordered by profile id
+        leaderboard.sort(function (a, b) {
+            return b.pagerank - a.pagerank || a.profileId - b.profileId;
+        });
+    }
+
+    function redraw() {
+        $(".loader").hide();
+        $("#personDataTable").empty();
+        $("#dashboard-header").html("");
+        drawTable(leaderboard);
+        drawDashboardHeader(leaderboard.slice());
+    }
+
+    function showError() {
+        $(".glyphicon-refresh")
+            .removeClass("glyphicon-refresh")
+            .removeClass("glyphicon-refresh-animate")
+            .addClass("glyphicon-exclamation-sign")
+    }
 
     function drawTable(data) {
         for (var i = 0; i < data.length; i++) {